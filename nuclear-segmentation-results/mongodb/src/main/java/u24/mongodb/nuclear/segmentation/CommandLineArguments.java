@@ -13,6 +13,10 @@ public class CommandLineArguments {
 
     private static String dbServer = null;
     private static String dbConnectionType = null;
+    private static boolean virtualThreads = false;
+    private static int maxRequests = SubmissionExecutor.DEFAULT_MAX_IN_FLIGHT;
+    private static int httpBatchSize = ProcessMaskFileHTTP.DEFAULT_BATCH_SIZE;
+    private static boolean httpGzip = false;
 
     private static String inpType = null;
     private static String inpList = null;
@@ -55,6 +59,25 @@ public class CommandLineArguments {
         dbOptGrp.addOption(dbServer);
         dbOptGrp.addOption(restServer);
         allOpts.addOptionGroup(dbOptGrp);
+
+        Option vthreads = Option.builder().longOpt("vthreads")
+                .desc("REST interface: process files and submit objects on virtual threads (Java 21+).")
+                .build();
+        Option maxRequests = Option.builder().longOpt("maxrequests")
+                .desc("REST interface: maximum number of requests in flight with --vthreads (default: "
+                        + SubmissionExecutor.DEFAULT_MAX_IN_FLIGHT + ").").hasArg()
+                .argName("count").build();
+        Option httpBatch = Option.builder().longOpt("httpbatch")
+                .desc("REST interface: number of objects posted in one request (default: "
+                        + ProcessMaskFileHTTP.DEFAULT_BATCH_SIZE + ").").hasArg()
+                .argName("count").build();
+        allOpts.addOption(vthreads);
+        allOpts.addOption(maxRequests);
+        Option httpGzip = Option.builder().longOpt("httpgzip")
+                .desc("REST interface: gzip compress the object batches (falls back to uncompressed "
+                        + "if the server answers 415).").build();
+        allOpts.addOption(httpBatch);
+        allOpts.addOption(httpGzip);
     }
 
     /**
@@ -271,6 +294,22 @@ public class CommandLineArguments {
             if (cmdLine.hasOption("rest")) {
                 dbConnectionType = "http";
                 dbServer = cmdLine.getOptionValue("rest");
+                virtualThreads = cmdLine.hasOption("vthreads");
+                httpGzip = cmdLine.hasOption("httpgzip");
+                if (cmdLine.hasOption("maxrequests")) {
+                    maxRequests = Integer.parseInt(cmdLine.getOptionValue("maxrequests"));
+                    if (maxRequests <= 0) {
+                        System.err.println("ERROR: maxrequests should be larger than 0.");
+                        return false;
+                    }
+                }
+                if (cmdLine.hasOption("httpbatch")) {
+                    httpBatchSize = Integer.parseInt(cmdLine.getOptionValue("httpbatch"));
+                    if (httpBatchSize <= 0) {
+                        System.err.println("ERROR: httpbatch should be larger than 0.");
+                        return false;
+                    }
+                }
             } else {
                 System.err.println("No mongo or rest option is provided.");
                 return false;
@@ -290,7 +329,8 @@ public class CommandLineArguments {
         switch (destVal) {
             case "db":
                 if (cmdLine.hasOption("mongo") || cmdLine.hasOption("rest")) {
-                    parseDatabaseOptions();
+                    if (!parseDatabaseOptions())
+                        return false;
                 } else {
                     System.err.println("Destination is FeatureDB, but no DB host:port defined.");
                     return false;
@@ -402,6 +442,22 @@ public class CommandLineArguments {
         return dbConnectionType;
     }
 
+    public static boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public static int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public static int getHttpBatchSize() {
+        return httpBatchSize;
+    }
+
+    public static boolean isHttpGzip() {
+        return httpGzip;
+    }
+
     // Getters for input type
     public static boolean isMaskFile() {
         return inpType.equals("maskfile");
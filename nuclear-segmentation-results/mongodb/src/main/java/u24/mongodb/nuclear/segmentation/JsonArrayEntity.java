@@ -0,0 +1,74 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Request body with a JSON array of documents, written straight to the
+ * connection in chunks, optionally gzip compressed.
+ * The array is never built as one String.
+ */
+public class JsonArrayEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private List<String> docs;
+    private boolean gzip;
+
+    public JsonArrayEntity(List<String> docs, boolean gzip) {
+        this.docs = docs;
+        this.gzip = gzip;
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        if (gzip)
+            setContentEncoding("gzip");
+        setChunked(true);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        GZIPOutputStream gzipOut = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                gzip ? gzipOut : out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        writer.write('[');
+        for (int i = 0; i < docs.size(); i++) {
+            if (i > 0)
+                writer.write(',');
+            writer.write(docs.get(i));
+        }
+        writer.write(']');
+        writer.flush();
+        // the connection stays open: finish the gzip stream instead of closing it
+        if (gzipOut != null)
+            gzipOut.finish();
+        out.flush();
+    }
+}
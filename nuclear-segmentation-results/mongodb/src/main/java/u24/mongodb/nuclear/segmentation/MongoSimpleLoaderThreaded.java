@@ -145,24 +145,17 @@ public class MongoSimpleLoaderThreaded {
                     currLine = iter.next();
                     System.out.println("Processing [" + fi + "]: " + currLine);
 
-                    String temp = (new File(currLine)).getName();
-                    String[] tokens = temp.split("_|-seg.png|.png");
-                    String caseID = (tokens[0].split("\\."))[0];
-                    int shiftX = Integer.parseInt(tokens[3]) * 4096;
-                    int shiftY = Integer.parseInt(tokens[4]) * 4096;
-
-                    System.out.println("fileName: " + temp +
-                            " caseID: " + caseID + "shift: " + shiftX + " " + shiftY);
+                    MaskTileName tile = MaskTileName.parse(currLine);
 
                     int check_done = 0;
                     while (check_done == 0) {
                         if (procFile[thread_id] == null
                                 || !procFile[thread_id].isAlive()) {
                             ProcessMaskFile maskFile = new ProcessMaskFile(
-                                    currLine, executionMetadata, shiftX, shiftY,
+                                    currLine, executionMetadata, tile.shiftX, tile.shiftY,
                                     segDB[thread_id]);
                             maskFile.setColor(colorVal);
-                            maskFile.setCaseID(caseID);
+                            maskFile.setCaseID(tile.caseID);
                             maskFile.doNormalization(true, false);
                             maskFile.setImgMetaFromDB(segDB[thread_id]);
 
@@ -178,10 +171,12 @@ public class MongoSimpleLoaderThreaded {
                 // Finishing Threads
                 loop(procFile,numThreads);
 
+            } else if (CommandLineArguments.isVirtualThreads()) {
+                handleMaskTileVirtual(segdbServer, fileList, numThreads, colorVal,
+                        new AnalysisExecutionMetadata(execId, execName, execType, computation));
             } else {
-                ResultsDatabaseHTTP[] segDB = new ResultsDatabaseHTTP[numThreads];
-                for (int i = 0; i < numThreads; i++)
-                    segDB[i] = new ResultsDatabaseHTTP(segdbServer, "tahsin", "tahsin");
+                ResultsDatabaseHTTP segDB = new ResultsDatabaseHTTP(segdbServer, "tahsin", "tahsin", numThreads);
+                segDB.setCompression(CommandLineArguments.isHttpGzip());
 
                 ProcessFileThread[] procFile = new ProcessFileThread[numThreads];
 
@@ -197,26 +192,20 @@ public class MongoSimpleLoaderThreaded {
                     currLine = iter.next();
                     System.out.println("Processing [" + fi + "]: " + currLine);
 
-                    String temp = (new File(currLine)).getName();
-                    String[] tokens = temp.split("_|-seg.png|.png");
-                    String caseID = (tokens[0].split("\\."))[0];
-                    int shiftX = Integer.parseInt(tokens[3]) * 4096;
-                    int shiftY = Integer.parseInt(tokens[4]) * 4096;
-
-                    System.out.println("fileName: " + temp +
-                            " caseID: " + caseID + "shift: " + shiftX + " " + shiftY);
+                    MaskTileName tile = MaskTileName.parse(currLine);
 
                     int check_done = 0;
                     while (check_done == 0) {
                         if (procFile[thread_id] == null
                                 || !procFile[thread_id].isAlive()) {
                             ProcessMaskFileHTTP maskFile = new ProcessMaskFileHTTP(
-                                    currLine, executionMetadata, shiftX, shiftY,
-                                    segDB[thread_id]);
+                                    currLine, executionMetadata, tile.shiftX, tile.shiftY,
+                                    segDB);
                             maskFile.setColor(colorVal);
-                            maskFile.setCaseID(caseID);
+                            maskFile.setCaseID(tile.caseID);
                             maskFile.doNormalization(true, false);
-                            maskFile.setImgMetaFromDB(segDB[thread_id]);
+                            maskFile.setImgMetaFromDB(segDB);
+                            maskFile.setBatchSize(CommandLineArguments.getHttpBatchSize());
 
                             procFile[thread_id] = new ProcessFileThread(maskFile);
                             check_done = 1;
@@ -229,11 +218,83 @@ public class MongoSimpleLoaderThreaded {
 
                 // Finishing Threads
                 loop(procFile,numThreads);
+                segDB.close();
             }
         } catch (Exception e) {
             System.err.println(e.getClass().getName() + ": " + e.getMessage());
         }
     }
+
+    /**
+     * Case id and shift of a mask tile file, from its name:
+     * <caseID>.<ext>_<x>_<y>_<tileX>_<tileY>[-seg].png; the shift is tileX, tileY times 4096.
+     */
+    private static class MaskTileName {
+        String caseID;
+        int shiftX;
+        int shiftY;
+
+        static MaskTileName parse(String currLine) {
+            String temp = (new File(currLine)).getName();
+            String[] tokens = temp.split("_|-seg.png|.png");
+            MaskTileName tile = new MaskTileName();
+            tile.caseID = (tokens[0].split("\\."))[0];
+            tile.shiftX = Integer.parseInt(tokens[3]) * 4096;
+            tile.shiftY = Integer.parseInt(tokens[4]) * 4096;
+
+            System.out.println("fileName: " + temp +
+                    " caseID: " + tile.caseID + "shift: " + tile.shiftX + " " + tile.shiftY);
+            return tile;
+        }
+    }
+
+    /**
+     * Mask tiles to the REST interface on virtual threads: numThreads files
+     * are processed at a time, and their batches of object documents are
+     * submitted with up to --maxrequests requests in flight over all files.
+     */
+    private static void handleMaskTileVirtual(String segdbServer, String fileList, int numThreads,
+            String colorVal, AnalysisExecutionMetadata executionMetadata) throws Exception {
+        ResultsDatabaseHTTP segDB = new ResultsDatabaseHTTP(segdbServer, "tahsin", "tahsin",
+                CommandLineArguments.getMaxRequests());
+        segDB.setCompression(CommandLineArguments.isHttpGzip());
+        SubmissionExecutor files = new SubmissionExecutor(numThreads, true);
+        SubmissionExecutor requests = new SubmissionExecutor(CommandLineArguments.getMaxRequests(), true);
+        System.out.println("Submitting on " + (requests.isVirtual() ? "virtual" : "platform") + " threads, "
+                + CommandLineArguments.getMaxRequests() + " requests in flight at most.");
+
+        IterateInputData iter = new IterateInputData(fileList);
+
+        String currLine;
+        int fi = 0;
+        while (iter.hasNext()) {
+            currLine = iter.next();
+            System.out.println("Processing [" + fi + "]: " + currLine);
+
+            MaskTileName tile = MaskTileName.parse(currLine);
+
+            final ProcessMaskFileHTTP maskFile = new ProcessMaskFileHTTP(
+                    currLine, executionMetadata, tile.shiftX, tile.shiftY, segDB);
+            maskFile.setColor(colorVal);
+            maskFile.setCaseID(tile.caseID);
+            maskFile.doNormalization(true, false);
+            maskFile.setImgMetaFromDB(segDB);
+            maskFile.setSubmitter(requests);
+            maskFile.setBatchSize(CommandLineArguments.getHttpBatchSize());
+
+            files.submit(new Runnable() {
+                public void run() {
+                    maskFile.processFile();
+                }
+            });
+            fi++;
+        }
+
+        System.out.println("Finishing threads.");
+        files.finish();
+        requests.finish();
+        segDB.close();
+    }
     
 	public static void handleAperioXMLFile() {
 		String outFolder = CommandLineArguments.getOutFoldername();
@@ -9,8 +9,11 @@ import u24.masktopoly.PolygonData;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class ProcessMaskFileHTTP implements ProcessFile {
     private String fileName;
@@ -29,6 +32,12 @@ public class ProcessMaskFileHTTP implements ProcessFile {
     private BufferedWriter bufferedWriter;
     private MaskToPoly maskToPoly;
     private ImageExecutionMapping imgExecMap;
+    private SubmissionExecutor submitter;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private List<String> batch;
+    private List<Future<?>> submissions;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
 
     SimpleImageMetadata imgMeta;
     private double min_x, min_y, max_x, max_y;
@@ -98,6 +107,21 @@ public class ProcessMaskFileHTTP implements ProcessFile {
         this.inpDB = inpDB;
     }
 
+    /**
+     * Number of object documents posted together as one JSON array.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * Submit the batches of object documents on the executor instead of one
+     * by one; processFile() returns when all of them are submitted.
+     */
+    public void setSubmitter(SubmissionExecutor submitter) {
+        this.submitter = submitter;
+    }
+
     public void doNormalization(boolean normalize, boolean fromself) {
         this.normalize = normalize;
         this.fromself = fromself;
@@ -111,6 +135,22 @@ public class ProcessMaskFileHTTP implements ProcessFile {
     }
 
 
+    private void flushBatch() throws InterruptedException {
+        if (batch.isEmpty())
+            return;
+        final List<String> docs = batch;
+        batch = new ArrayList<>(batchSize);
+        if (submitter != null) {
+            submissions.add(submitter.submit(new Runnable() {
+                public void run() {
+                    outDB.submitObjectsDocuments(docs);
+                }
+            }));
+        } else {
+            outDB.submitObjectsDocuments(docs);
+        }
+    }
+
     boolean setImageMetadata() {
         if (getFromDB) {
             String imgDocument = inpDB.getImageObject(caseID);
@@ -172,6 +212,8 @@ public class ProcessMaskFileHTTP implements ProcessFile {
                 }
             }
 
+            batch = new ArrayList<>(batchSize);
+            submissions = new ArrayList<>();
             List<PolygonData> polygons = maskToPoly.getPolygons();
             PolygonData polygon;
             Point[] points;
@@ -216,12 +258,23 @@ public class ProcessMaskFileHTTP implements ProcessFile {
 
                 if (outDB != null) {
                     // load to segmentation results database
-                    outDB.submitObjectsDocument(obj_2d.getMetadataDoc().toString());
+                    batch.add(obj_2d.getMetadataDoc().toString());
+                    if (batch.size() >= batchSize)
+                        flushBatch();
                 } else if (bufferedWriter != null) {
                     // Write segmentation results to file in JSON format
                     bufferedWriter.write(obj_2d.getMetadataDoc().toString() + "\n");
                 }
             }
+            if (outDB != null)
+                flushBatch();
+            for (Future<?> submission : submissions) {
+                try {
+                    submission.get();
+                } catch (ExecutionException e) {
+                    System.err.println("ERROR: Submission failed. " + e.getCause());
+                }
+            }
             if (bufferedWriter != null) {
                 bufferedWriter.close();
                 outFileWriter.close();
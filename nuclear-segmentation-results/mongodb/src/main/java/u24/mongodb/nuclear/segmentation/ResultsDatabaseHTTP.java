@@ -1,13 +1,18 @@
 package u24.mongodb.nuclear.segmentation;
 
+import java.util.List;
+
 import org.apache.http.HttpHost;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -18,128 +23,133 @@ import org.apache.http.impl.client.BasicCredentialsProvider;
  * Node.js service to see how fast we can push data to the database.
  * HTTP protocol - Allow people to load small amount of data
  * without having direct access to the database.
+ * All requests share one client with a pool of keep-alive connections,
+ * so one instance can be shared by many submitting threads.
  */
 public class ResultsDatabaseHTTP {
 
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
     private String resultDbName;
     private String dbHost;
     private int dbPort;
+    private HttpHost httpHost;
+    private PoolingHttpClientConnectionManager connManager;
     private CloseableHttpClient client;
     private CredentialsProvider credsProvider;
+    private volatile boolean gzip = false;
 
     public ResultsDatabaseHTTP(String dbURI, String username, String password) {
+        this(dbURI, username, password, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * maxConnections: connections kept open to the server; requests beyond
+     * that wait for a free connection.
+     */
+    public ResultsDatabaseHTTP(String dbURI, String username, String password, int maxConnections) {
         String[] tokens = dbURI.split("://|:|/");
         this.dbHost = tokens[1];
         this.dbPort = Integer.parseInt(tokens[2]);
         this.resultDbName = tokens[3];
+        this.httpHost = new HttpHost(dbHost, dbPort, "http");
 
         credsProvider = new BasicCredentialsProvider();
         credsProvider.setCredentials(new AuthScope(this.dbHost, this.dbPort),
                 new UsernamePasswordCredentials(username, password));
-    }
 
-    private void submitDocument(String doc, String collection) {
-        this.client = HttpClients.custom()
+        connManager = new PoolingHttpClientConnectionManager();
+        connManager.setMaxTotal(Math.max(maxConnections, 1));
+        connManager.setDefaultMaxPerRoute(Math.max(maxConnections, 1));
+        client = HttpClients.custom()
+                .setConnectionManager(connManager)
                 .setDefaultCredentialsProvider(credsProvider)
                 .build();
+    }
+
+    /**
+     * Send the object batches gzip compressed. If the server answers
+     * 415 Unsupported Media Type, compression is turned off and the
+     * batch is sent again uncompressed.
+     */
+    public void setCompression(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public boolean isCompression() {
+        return gzip;
+    }
+
+    private void submitDocument(String doc, String collection) {
+        submitEntity(new StringEntity(doc, ContentType.APPLICATION_JSON), collection);
+    }
+
+    /**
+     * Returns the HTTP status, or -1 if the request failed.
+     */
+    private int submitEntity(HttpEntity entity, String collection) {
         try {
-            HttpHost httpHost = new HttpHost(dbHost, dbPort, "http");
             HttpPost httpPost = new HttpPost("/api/v1/database/"
                     + resultDbName + "/" + collection);
-
-            StringEntity entity = new StringEntity(doc);
             httpPost.setEntity(entity);
-            httpPost.setHeader("Content-type", "application/json");
 
             CloseableHttpResponse response = client.execute(httpHost, httpPost);
-            int status = response.getStatusLine().getStatusCode();
-            if (status < 200 || status > 300) {
-                System.err.println("ERROR: " + status + " Msg: " + response.getStatusLine());
+            try {
+                int status = response.getStatusLine().getStatusCode();
+                if ((status < 200 || status > 300) && !isCompressionRejected(entity, status)) {
+                    System.err.println("ERROR: " + status + " Msg: " + response.getStatusLine());
+                }
+                // read the body so the connection goes back to the pool
+                EntityUtils.consume(response.getEntity());
+                return status;
+            } finally {
+                response.close();
             }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            try {
-                client.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
+        return -1;
     }
 
-    public boolean checkMetadataExists(String caseid, String execid) {
-        client = HttpClients.custom()
-                .setDefaultCredentialsProvider(credsProvider)
-                .build();
+    private static boolean isCompressionRejected(HttpEntity entity, int status) {
+        return status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE && entity.getContentEncoding() != null;
+    }
 
-        boolean retVal = false;
+    private String getDocument(String query) {
         try {
-            HttpHost target = new HttpHost("localhost", 3000, "http");
-
-            // specify the get request
-            String query = "/api/v1/database/" + resultDbName
-                    + "/metadata?filter[where][image.caseid]=" + caseid
-                    + "&filter[where][provenance.analysis_execution_id]=" + execid;
-
-            System.out.println("QUERY: " + query);
             HttpGet getRequest = new HttpGet(query);
-
-            CloseableHttpResponse httpResponse = client.execute(target, getRequest);
-            HttpEntity entity = httpResponse.getEntity();
-
-            if (entity != null) {
-                String resValue = EntityUtils.toString(entity);
-                retVal = !resValue.equals("null");
-            } else {
-                retVal = false;
+            CloseableHttpResponse httpResponse = client.execute(httpHost, getRequest);
+            try {
+                HttpEntity entity = httpResponse.getEntity();
+                if (entity != null)
+                    return EntityUtils.toString(entity);
+            } finally {
+                httpResponse.close();
             }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            try {
-                client.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
         }
+        return null;
+    }
+
+    public boolean checkMetadataExists(String caseid, String execid) {
+        // specify the get request
+        String query = "/api/v1/database/" + resultDbName
+                + "/metadata?filter[where][image.caseid]=" + caseid
+                + "&filter[where][provenance.analysis_execution_id]=" + execid;
+
+        System.out.println("QUERY: " + query);
+        String resValue = getDocument(query);
+        boolean retVal = (resValue != null && !resValue.equals("null"));
         System.out.println("Returning : " + retVal);
         return retVal;
     }
 
     public String getImageObject(String caseid) {
-        client = HttpClients.custom()
-                .setDefaultCredentialsProvider(credsProvider)
-                .build();
-        try {
-            HttpHost target = new HttpHost("localhost", 3000, "http");
-
-            // specify the get request
-            // String query = "/api/v1/database/" + resultDbName + "/images?caseid=" + caseid;
-            // loopback
-            String query = "/api/v1/database/" + resultDbName + "/images/findOne?filter[where][caseid]=" + caseid;
-            System.out.println("Query: " + query);
-            HttpGet getRequest = new HttpGet(query);
-
-            CloseableHttpResponse httpResponse = client.execute(target, getRequest);
-            HttpEntity entity = httpResponse.getEntity();
-
-            if (entity != null) {
-                return EntityUtils.toString(entity);
-                // loopback
-                // String entity_str = EntityUtils.toString(entity);
-                // System.out.println("RECEIVED: " + entity_str);
-                // return entity_str;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                client.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-        return null;
+        // loopback
+        String query = "/api/v1/database/" + resultDbName + "/images/findOne?filter[where][caseid]=" + caseid;
+        System.out.println("Query: " + query);
+        return getDocument(query);
     }
 
     public void submitObjectsDocument(String doc) {
@@ -147,8 +157,34 @@ public class ResultsDatabaseHTTP {
         submitDocument(doc, objectsCollection);
     }
 
+    /**
+     * Submit many object documents as one JSON array in a single request.
+     * The array is streamed to the server, gzip compressed if enabled.
+     */
+    public void submitObjectsDocuments(List<String> docs) {
+        if (docs.isEmpty())
+            return;
+        boolean compress = gzip;
+        int status = submitEntity(new JsonArrayEntity(docs, compress), "objects");
+        if (compress && status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+            if (gzip) {
+                gzip = false;
+                System.err.println("Warning: the server does not accept gzip request bodies; sending uncompressed.");
+            }
+            submitEntity(new JsonArrayEntity(docs, false), "objects");
+        }
+    }
+
     public void submitMetadataDocument(String doc) {
         String metadataCollection = "metadata";
         submitDocument(doc, metadataCollection);
     }
+
+    public void close() {
+        try {
+            client.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks that spend most of their time waiting on the network
+ * (HTTP requests, metadata lookups), with at most maxInFlight running at once.
+ * submit() blocks while the limit is reached.
+ *
+ * On a Java runtime with virtual threads each task gets its own virtual thread,
+ * so thousands of requests in flight cost little memory. Otherwise a pool of
+ * maxInFlight platform threads is used.
+ */
+public class SubmissionExecutor {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private ExecutorService executor;
+    private Semaphore inFlight;
+    private boolean virtual;
+
+    public SubmissionExecutor(int maxInFlight, boolean useVirtualThreads) {
+        maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = useVirtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtual = (executor != null);
+        if (executor == null)
+            executor = Executors.newFixedThreadPool(maxInFlight);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() if this runtime has it, else null.
+     * Looked up by reflection so the loader still builds and runs on older Java versions.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            System.err.println("Warning: virtual threads are not available on Java "
+                    + System.getProperty("java.version") + "; using platform threads.");
+            return null;
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public Future<?> submit(final Runnable task) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            return executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for all submitted tasks to complete.
+     */
+    public void finish() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.HOURS)) { }
+    }
+}
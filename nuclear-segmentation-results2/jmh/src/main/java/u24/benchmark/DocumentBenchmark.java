@@ -0,0 +1,149 @@
+package u24.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BasicBSONEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+import u24.mongodb.nuclear.segmentation.AnalysisExecutionMetadata;
+import u24.mongodb.nuclear.segmentation.Image2DMarkupBSON;
+import u24.mongodb.nuclear.segmentation.Image2DMarkupGeoJSON;
+import u24.mongodb.nuclear.segmentation.Poinsettia;
+import u24.mongodb.nuclear.segmentation.PolygonBuffer;
+import u24.mongodb.nuclear.segmentation.SimpleImageMetadata;
+
+/**
+ * Building an objects document with Image2DMarkupGeoJSON and serializing it
+ * to JSON and BSON, per document. markupBSON encodes the same polygon and
+ * features with Image2DMarkupBSON, as the CSV and TSV processors do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentBenchmark {
+	private static final int POLYGONS = 100;
+	private static final String NAMESPACE = "http://u24.bmi.stonybrook.edu/v1";
+
+	@Param({"24", "64", "256"})
+	public int numPoints;
+
+	private ArrayList<Double>[] pointLists;
+	private PolygonBuffer[] polygons;
+	private double[][] features;
+	private double[] areas;
+	private AnalysisExecutionMetadata execMeta;
+	private SimpleImageMetadata imgMeta;
+	private BasicBSONEncoder bsonEncoder;
+	private Image2DMarkupBSON markupBSON;
+
+	@Setup
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public void setup() {
+		SyntheticNuclei nuclei = new SyntheticNuclei(42);
+		pointLists = new ArrayList[POLYGONS];
+		polygons = new PolygonBuffer[POLYGONS];
+		features = new double[POLYGONS][];
+		areas = new double[POLYGONS];
+		for (int i = 0; i < POLYGONS; i++) {
+			double[] coords = nuclei.nextPolygon(numPoints);
+			areas[i] = SyntheticNuclei.area(coords);
+			polygons[i] = new PolygonBuffer(numPoints);
+			for (int j = 0; j < coords.length; j += 2) {
+				coords[j]     /= SyntheticNuclei.IMAGE_WIDTH;
+				coords[j + 1] /= SyntheticNuclei.IMAGE_HEIGHT;
+				polygons[i].add(coords[j], coords[j + 1]);
+			}
+			pointLists[i] = SyntheticNuclei.toList(coords);
+			features[i] = nuclei.nextFeatures();
+		}
+
+		execMeta = new AnalysisExecutionMetadata("benchmark-exec", "benchmark-study", "b0", "t0",
+				"Benchmark segmentation", "computer", "segmentation");
+		imgMeta = new SimpleImageMetadata();
+		imgMeta.setIdentifier("TCGA-00-0000-01Z-00-DX1");
+		imgMeta.setCaseid("TCGA-00-0000-01Z-00-DX1");
+		imgMeta.setSubjectid("TCGA-00-0000");
+		imgMeta.setMpp_x(0.25);
+		imgMeta.setMpp_y(0.25);
+		imgMeta.setWidth(SyntheticNuclei.IMAGE_WIDTH);
+		imgMeta.setHeight(SyntheticNuclei.IMAGE_HEIGHT);
+		imgMeta.setObjective(40.0);
+		imgMeta.setCancertype("unknown");
+		bsonEncoder = new BasicBSONEncoder();
+		markupBSON = new Image2DMarkupBSON(execMeta, imgMeta, NAMESPACE, true);
+	}
+
+	private BasicDBObject getGeoJSONDocument(int i) {
+		Poinsettia pointSetter = new Poinsettia();
+		pointSetter.getBoundingBox(pointLists[i]);
+
+		Image2DMarkupGeoJSON obj_2d = new Image2DMarkupGeoJSON();
+		obj_2d.setMarkup(pointSetter.getMin_x(), pointSetter.getMin_y(),
+				pointSetter.getMax_x(), pointSetter.getMax_y(), "Polygon", true,
+				pointSetter.getPolygonPoints(pointLists[i]));
+		obj_2d.setFootprint(areas[i]);
+
+		HashMap<String, Object> nvFeatures = new HashMap<>();
+		for (int f = 0; f < SyntheticNuclei.FEATURE_NAMES.length; f++)
+			nvFeatures.put(SyntheticNuclei.FEATURE_NAMES[f], features[i][f]);
+		HashMap<String, HashMap<String, Object>> ns_features = new HashMap<>();
+		ns_features.put(NAMESPACE, nvFeatures);
+		obj_2d.setScalarFeatures(ns_features);
+
+		obj_2d.setProvenance(execMeta, imgMeta);
+		return obj_2d.getMetadataDoc();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POLYGONS)
+	public void geoJSONDocument(Blackhole bh) {
+		for (int i = 0; i < POLYGONS; i++)
+			bh.consume(getGeoJSONDocument(i));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POLYGONS)
+	public void geoJSONToJSON(Blackhole bh) {
+		for (int i = 0; i < POLYGONS; i++)
+			bh.consume(JSON.serialize(getGeoJSONDocument(i)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POLYGONS)
+	public void geoJSONToBSON(Blackhole bh) {
+		for (int i = 0; i < POLYGONS; i++)
+			bh.consume(bsonEncoder.encode(getGeoJSONDocument(i)));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POLYGONS)
+	public void markupBSON(Blackhole bh) {
+		for (int i = 0; i < POLYGONS; i++) {
+			markupBSON.clearFeatures();
+			for (int f = 0; f < SyntheticNuclei.FEATURE_NAMES.length; f++)
+				markupBSON.addFeature(SyntheticNuclei.FEATURE_NAMES[f], features[i][f]);
+			markupBSON.setFootprint(areas[i]);
+			bh.consume(markupBSON.encode(polygons[i]));
+		}
+	}
+}
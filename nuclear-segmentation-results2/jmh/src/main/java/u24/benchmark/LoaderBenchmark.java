@@ -0,0 +1,349 @@
+package u24.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import u24.mongodb.nuclear.segmentation.DiscardSink;
+import u24.mongodb.nuclear.segmentation.FileListener;
+import u24.mongodb.nuclear.segmentation.MongoSimpleLoaderThreaded;
+import u24.mongodb.nuclear.segmentation.ProcessFile;
+
+/**
+ * End-to-end load test. Generates synthetic inputs of one type, runs
+ * MongoSimpleLoaderThreaded on them in this JVM and reports objects per
+ * second, input bytes per second, per-file latency (p50, p99) and peak heap.
+ *
+ * By default the objects go to a DiscardSink (--dest null), which counts the
+ * encoded documents. Loader arguments after "--" replace the destination,
+ * e.g. "-- --dest db --dbhost localhost --dbname bench" for a local mongod.
+ * Aperio XML files are written as JSON files to the work folder.
+ *
+ * The objects are counted as the loader's files report them, for any
+ * destination. A run that loads fewer objects than were generated fails,
+ * and the benchmark exits with status 1.
+ */
+public class LoaderBenchmark {
+
+	private static final int    DEFAULT_FILES    = 8;
+	private static final int    DEFAULT_NUCLEI   = 20000;  // per file
+	private static final int    DEFAULT_VERTICES = 32;     // per polygon
+	private static final int    DEFAULT_RUNS     = 3;
+	private static final int    DEFAULT_WARMUP   = 1;
+	private static final double MB = 1024.0 * 1024.0;
+
+	private String inpType;
+	private int numFiles;
+	private int numNuclei;
+	private int numVertices;
+	private File folder;
+	private File inputList;
+	private long inputBytes = 0;
+	private long generatedObjects = 0;
+	private List<String> loaderArgs = new ArrayList<>();
+	private boolean stub;
+
+	/**
+	 * Result of one loader run.
+	 */
+	private static class RunResult {
+		double seconds;
+		long objects;
+		long encodedBytes;
+		long[] fileNanos;
+		long peakHeap;
+	}
+
+	private static Options getOptions() {
+		Options opts = new Options();
+		opts.addOption(Option.builder().longOpt("inptype")
+				.desc("Input type: csv, tsv, maskfile or aperio (default: csv).")
+				.hasArg().argName("type").build());
+		opts.addOption(Option.builder().longOpt("files")
+				.desc("Number of input files (default: " + DEFAULT_FILES + ").")
+				.hasArg().argName("count").build());
+		opts.addOption(Option.builder().longOpt("nuclei")
+				.desc("Nuclei per file (default: " + DEFAULT_NUCLEI + ").")
+				.hasArg().argName("count").build());
+		opts.addOption(Option.builder().longOpt("vertices")
+				.desc("Vertices per polygon; not used for masks (default: " + DEFAULT_VERTICES + ").")
+				.hasArg().argName("count").build());
+		opts.addOption(Option.builder().longOpt("threads")
+				.desc("Loader threads (--threads of the loader).")
+				.hasArg().argName("count|auto").build());
+		opts.addOption(Option.builder().longOpt("runs")
+				.desc("Measured runs (default: " + DEFAULT_RUNS + ").")
+				.hasArg().argName("count").build());
+		opts.addOption(Option.builder().longOpt("warmup")
+				.desc("Runs before the measured ones (default: " + DEFAULT_WARMUP + ").")
+				.hasArg().argName("count").build());
+		opts.addOption(Option.builder().longOpt("folder")
+				.desc("Folder for the generated files (default: a temporary folder, deleted at the end).")
+				.hasArg().argName("folder").build());
+		opts.addOption(Option.builder().longOpt("verbose")
+				.desc("Show the loader output.")
+				.build());
+		return opts;
+	}
+
+	public static void main(String args[]) {
+		// Arguments after "--" go to the loader
+		int split = Arrays.asList(args).indexOf("--");
+		String[] ownArgs = (split < 0) ? args : Arrays.copyOfRange(args, 0, split);
+		String[] extraArgs = (split < 0) ? new String[0] : Arrays.copyOfRange(args, split + 1, args.length);
+
+		Options opts = getOptions();
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmdLine;
+		try {
+			cmdLine = parser.parse(opts, ownArgs);
+		} catch (ParseException e) {
+			System.err.println("ERROR: " + e.getMessage());
+			new HelpFormatter().printHelp("LoaderBenchmark [options] [-- loader options]", opts);
+			return;
+		}
+
+		LoaderBenchmark bench = new LoaderBenchmark();
+		bench.inpType     = cmdLine.getOptionValue("inptype", "csv");
+		bench.numFiles    = Integer.parseInt(cmdLine.getOptionValue("files", Integer.toString(DEFAULT_FILES)));
+		bench.numNuclei   = Integer.parseInt(cmdLine.getOptionValue("nuclei", Integer.toString(DEFAULT_NUCLEI)));
+		bench.numVertices = Integer.parseInt(cmdLine.getOptionValue("vertices", Integer.toString(DEFAULT_VERTICES)));
+		int runs   = Integer.parseInt(cmdLine.getOptionValue("runs", Integer.toString(DEFAULT_RUNS)));
+		int warmup = Integer.parseInt(cmdLine.getOptionValue("warmup", Integer.toString(DEFAULT_WARMUP)));
+		boolean verbose = cmdLine.hasOption("verbose");
+		if (!Arrays.asList("csv", "tsv", "maskfile", "aperio").contains(bench.inpType)) {
+			System.err.println("ERROR: Unknown value for inptype parameter.");
+			return;
+		}
+
+		boolean tempFolder = !cmdLine.hasOption("folder");
+		boolean completed = false;
+		int failedRuns = 0;
+		try {
+			bench.folder = tempFolder ? Files.createTempDirectory("loader-benchmark-").toFile()
+					: new File(cmdLine.getOptionValue("folder"));
+			if (!bench.folder.isDirectory() && !bench.folder.mkdirs())
+				throw new IOException("Cannot create folder: " + bench.folder);
+
+			System.out.println("Generating " + bench.numFiles + " " + bench.inpType + " files in " + bench.folder);
+			bench.generateInputs();
+			System.out.printf("Input: %d objects, %.1f MB%n", bench.generatedObjects, bench.inputBytes / MB);
+
+			bench.setLoaderArgs(cmdLine.getOptionValue("threads"), extraArgs);
+			System.out.println("Loader arguments: " + bench.loaderArgs);
+
+			List<RunResult> results = new ArrayList<>();
+			for (int run = 0; run < warmup + runs; run++) {
+				RunResult result = bench.runLoader(verbose);
+				boolean measured = run >= warmup;
+				boolean passed = bench.report(measured ? "Run " + (run - warmup + 1) : "Warmup " + (run + 1), result);
+				if (!passed)
+					failedRuns++;
+				else if (measured)
+					results.add(result);
+			}
+			bench.reportMean(results);
+			completed = true;
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		} finally {
+			// after a failure the loader threads may still be reading the files
+			if (tempFolder && bench.folder != null) {
+				if (completed && failedRuns == 0)
+					deleteFolder(bench.folder);
+				else
+					System.err.println("Keeping the input files in " + bench.folder);
+			}
+		}
+		if (failedRuns > 0) {
+			System.err.println("ERROR: " + failedRuns + " runs did not load all objects.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Write the input files and the input list.
+	 */
+	private void generateInputs() throws IOException {
+		SyntheticNuclei nuclei = new SyntheticNuclei(42);
+		int maskSize = SyntheticNuclei.getMaskSize(numNuclei);
+		inputList = new File(folder, "input-list.txt");
+		FileWriter list = new FileWriter(inputList);
+		try {
+			for (int i = 0; i < numFiles; i++) {
+				String caseId = String.format("BENCH-%04d", i);
+				File file;
+				switch (inpType) {
+				case "csv":
+					file = new File(folder, caseId + "-features.csv");
+					nuclei.writeCSV(file, numNuclei, numVertices);
+					generatedObjects += numNuclei;
+					break;
+				case "tsv":
+					file = new File(folder, caseId + "-features.tsv");
+					nuclei.writeTSV(file, numNuclei, numVertices);
+					generatedObjects += numNuclei;
+					break;
+				case "maskfile":
+					file = new File(folder, caseId + "-mask.png");
+					generatedObjects += nuclei.writeMask(file, maskSize, maskSize);
+					break;
+				default:
+					file = new File(folder, caseId + ".xml");
+					nuclei.writeAperioXML(file, numNuclei, numVertices);
+					generatedObjects += numNuclei;
+					break;
+				}
+				inputBytes += file.length();
+				list.write(caseId + "," + caseId + "," + file.getPath());
+				list.write(inpType.equals("maskfile") ? ",0,0\n" : "\n");
+			}
+		} finally {
+			list.close();
+		}
+	}
+
+	private void setLoaderArgs(String threads, String[] extraArgs) throws IOException {
+		loaderArgs.addAll(Arrays.asList("--inptype", inpType, "--inplist", inputList.getPath(),
+				"--eid", "loader-benchmark", "--studyid", "benchmark"));
+		if (threads != null)
+			loaderArgs.addAll(Arrays.asList("--threads", threads));
+		stub = !Arrays.asList(extraArgs).contains("--dest");
+		if (stub) {
+			if (inpType.equals("aperio")) {
+				File outFolder = new File(folder, "out");
+				if (!outFolder.isDirectory() && !outFolder.mkdirs())
+					throw new IOException("Cannot create folder: " + outFolder);
+				loaderArgs.addAll(Arrays.asList("--dest", "file", "--outfolder", outFolder.getPath()));
+				stub = false;
+			} else {
+				loaderArgs.addAll(Arrays.asList("--dest", "null"));
+			}
+		}
+		loaderArgs.addAll(Arrays.asList(extraArgs));
+	}
+
+	private RunResult runLoader(boolean verbose) {
+		DiscardSink sink = stub ? new DiscardSink() : null;
+		final List<Long> fileNanos = Collections.synchronizedList(new ArrayList<Long>());
+		final LongAdder objects = new LongAdder();
+		FileListener listener = new FileListener() {
+			public void fileDone(ProcessFile file, long elapsedNanos) {
+				fileNanos.add(elapsedNanos);
+				objects.add(file.getObjectCount());
+			}
+		};
+
+		List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				heapPools.add(pool);
+		}
+		System.gc();
+		for (MemoryPoolMXBean pool : heapPools)
+			pool.resetPeakUsage();
+
+		PrintStream stdout = System.out;
+		if (!verbose)
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) { }
+				public void write(byte[] b, int off, int len) { }
+			}));
+		long start = System.nanoTime();
+		try {
+			MongoSimpleLoaderThreaded.run(loaderArgs.toArray(new String[loaderArgs.size()]), sink, listener);
+		} finally {
+			System.setOut(stdout);
+		}
+
+		RunResult result = new RunResult();
+		result.seconds = (System.nanoTime() - start) / 1e9;
+		result.objects = objects.sum(); // submitted by the files, to any destination
+		result.encodedBytes = (sink != null) ? sink.getByteCount() : -1;
+		result.fileNanos = new long[fileNanos.size()];
+		for (int i = 0; i < result.fileNanos.length; i++)
+			result.fileNanos[i] = fileNanos.get(i);
+		Arrays.sort(result.fileNanos);
+		for (MemoryPoolMXBean pool : heapPools) // pools peak at different times: an upper bound
+			result.peakHeap += pool.getPeakUsage().getUsed();
+		return result;
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted values, in milliseconds.
+	 */
+	private static double percentileMillis(long[] sorted, double p) {
+		if (sorted.length == 0)
+			return 0;
+		int rank = (int) Math.ceil(p * sorted.length);
+		return sorted[Math.max(rank - 1, 0)] / 1e6;
+	}
+
+	/**
+	 * Print the result of a run. Returns false if it loaded fewer objects than generated.
+	 */
+	private boolean report(String name, RunResult r) {
+		StringBuilder line = new StringBuilder();
+		line.append(String.format("%s: %d objects in %.2f s, %.0f objects/s, %.1f MB/s input",
+				name, r.objects, r.seconds, r.objects / r.seconds, inputBytes / MB / r.seconds));
+		if (r.encodedBytes >= 0)
+			line.append(String.format(", %.1f MB/s encoded", r.encodedBytes / MB / r.seconds));
+		line.append(String.format("%n    file latency p50 %.1f ms, p99 %.1f ms (%d files), peak heap %.0f MB",
+				percentileMillis(r.fileNanos, 0.50), percentileMillis(r.fileNanos, 0.99),
+				r.fileNanos.length, r.peakHeap / MB));
+		System.out.println(line);
+		if (r.objects < generatedObjects) {
+			System.err.println("FAILED: " + r.objects + " of " + generatedObjects + " objects loaded"
+					+ " from " + r.fileNanos.length + " of " + numFiles + " files;"
+					+ " run with --verbose to see the loader output.");
+			return false;
+		}
+		return true;
+	}
+
+	private void reportMean(List<RunResult> results) {
+		if (results.isEmpty())
+			return;
+		double objectsPerSec = 0, bytesPerSec = 0;
+		long peakHeap = 0;
+		for (RunResult r : results) {
+			objectsPerSec += r.objects / r.seconds;
+			bytesPerSec += inputBytes / r.seconds;
+			peakHeap = Math.max(peakHeap, r.peakHeap);
+		}
+		System.out.printf("Mean of %d runs: %.0f objects/s, %.1f MB/s input, max peak heap %.0f MB%n",
+				results.size(), objectsPerSec / results.size(), bytesPerSec / results.size() / MB, peakHeap / MB);
+	}
+
+	private static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory())
+					deleteFolder(file);
+				else
+					file.delete();
+			}
+		}
+		folder.delete();
+	}
+}
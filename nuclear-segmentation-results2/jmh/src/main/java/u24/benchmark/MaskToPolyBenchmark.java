@@ -0,0 +1,74 @@
+package u24.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import u24.masktopoly.MaskToPoly;
+
+
+/**
+ * Polygon extraction from a synthetic mask tile (SyntheticNuclei.writeMask).
+ * extractPolygons traces the mask read in setup; extractPolygonsTiled also
+ * reads the PNG, in tiles on the common pool.
+ * Run with -p backend=opencv to measure the OpenCV backend.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MaskToPolyBenchmark {
+	private static final int TILE_SIZE = 1024;
+
+	@Param({"2048", "4096"})
+	public int maskSize;
+
+	@Param({MaskToPoly.BACKEND_JAVA})
+	public String backend;
+
+	private File maskFile;
+	private MaskToPoly mtp;
+
+	@Setup
+	public void setup() throws IOException {
+		maskFile = File.createTempFile("mask-benchmark-", ".png");
+		new SyntheticNuclei(42).writeMask(maskFile, maskSize, maskSize);
+
+		mtp = new MaskToPoly(false, backend);
+		if (mtp.readMask(maskFile.getPath()) != 0)
+			throw new IOException("Cannot read mask file: " + maskFile);
+	}
+
+	@TearDown
+	public void tearDown() {
+		maskFile.delete();
+	}
+
+	@Benchmark
+	public int extractPolygons() {
+		mtp.extractPolygons();
+		return mtp.getPolygonCount();
+	}
+
+	@Benchmark
+	public int extractPolygonsTiled() {
+		mtp.extractPolygonsTiled(maskFile.getPath(), TILE_SIZE, ForkJoinPool.commonPool());
+		return mtp.getPolygonCount();
+	}
+}
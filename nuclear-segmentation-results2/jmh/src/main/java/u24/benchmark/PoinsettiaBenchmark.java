@@ -0,0 +1,68 @@
+package u24.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mongodb.BasicDBList;
+
+import u24.mongodb.nuclear.segmentation.Poinsettia;
+import u24.mongodb.nuclear.segmentation.PolygonBuffer;
+
+/**
+ * Bounding box and GeoJSON point list of one polygon: the boxed ArrayList
+ * methods next to computeBoundingBox on the coordinates of a PolygonBuffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoinsettiaBenchmark {
+
+	@Param({"24", "64", "256"})
+	public int numPoints;
+
+	private ArrayList<Double> pointList;
+	private double[] coords;
+	private Poinsettia poinsettia;
+
+	@Setup
+	public void setup() {
+		coords = new SyntheticNuclei(42).nextPolygon(numPoints);
+		pointList = SyntheticNuclei.toList(coords);
+		poinsettia = new Poinsettia();
+	}
+
+	@Benchmark
+	public void boundingBox(Blackhole bh) {
+		poinsettia.getBoundingBox(pointList);
+		bh.consume(poinsettia.getMin_x());
+		bh.consume(poinsettia.getMax_y());
+	}
+
+	@Benchmark
+	public void boundingBoxCoords(Blackhole bh) {
+		poinsettia.computeBoundingBox(coords, numPoints);
+		bh.consume(poinsettia.getMin_x());
+		bh.consume(poinsettia.getMax_y());
+	}
+
+	@Benchmark
+	public BasicDBList polygonPoints() {
+		return poinsettia.getPolygonPoints(pointList);
+	}
+}
@@ -0,0 +1,98 @@
+package u24.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import u24.mongodb.nuclear.segmentation.InputParameters;
+import u24.mongodb.nuclear.segmentation.PolygonBuffer;
+import u24.mongodb.nuclear.segmentation.ProcessCSVFeaturePolygonFile;
+import u24.mongodb.nuclear.segmentation.ProcessTSVQuipFile;
+import u24.mongodb.nuclear.segmentation.TSVQuipReader;
+
+/**
+ * Parsing and normalization of the polygon column of the CSV and TSV inputs,
+ * per polygon. The TSV benchmark reads a whole in-memory file, as ProcessTSVQuipFile does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PolygonParseBenchmark {
+	private static final int POLYGONS = 1000;
+
+	@Param({"24", "64", "256"})
+	public int numPoints;
+
+	private String[] csvPolygons;
+	private byte[] tsvFile;
+	private int tsvPolygonColumn;
+	private ProcessCSVFeaturePolygonFile csvProcessor;
+	private ProcessTSVQuipFile tsvProcessor;
+	private PolygonBuffer outPoints;
+
+	@Setup
+	public void setup() {
+		SyntheticNuclei nuclei = new SyntheticNuclei(42);
+		csvPolygons = new String[POLYGONS];
+		StringBuilder tsv = new StringBuilder("AreaInPixels\tPhysicalSize\tPolygon\n");
+		tsvPolygonColumn = 2;
+		for (int i = 0; i < POLYGONS; i++) {
+			double[] coords = nuclei.nextPolygon(numPoints);
+			csvPolygons[i] = SyntheticNuclei.toCSVPolygon(coords);
+			double area = SyntheticNuclei.area(coords);
+			tsv.append(area).append('\t').append(area * 0.0625).append('\t')
+				.append(SyntheticNuclei.toTSVPolygon(coords)).append('\n');
+		}
+		tsvFile = tsv.toString().getBytes(StandardCharsets.UTF_8);
+
+		InputParameters inputParams = new InputParameters();
+		inputParams.doSimplify = false;
+		csvProcessor = new ProcessCSVFeaturePolygonFile(null, null, null, null, inputParams, null);
+		tsvProcessor = new ProcessTSVQuipFile(null, null, null, null, inputParams, null);
+		outPoints = new PolygonBuffer();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POLYGONS)
+	public void csvNormalizedPoints(Blackhole bh) {
+		for (int i = 0; i < POLYGONS; i++) {
+			csvProcessor.getNormalizedPoints(csvPolygons[i], SyntheticNuclei.IMAGE_WIDTH,
+					SyntheticNuclei.IMAGE_HEIGHT, outPoints);
+			bh.consume(outPoints.getCoords());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POLYGONS)
+	public void tsvNormalizedPoints(Blackhole bh) throws IOException {
+		TSVQuipReader reader = new TSVQuipReader(new ByteArrayInputStream(tsvFile));
+		try {
+			reader.readHeader();
+			while (reader.nextRow()) {
+				tsvProcessor.getNormalizedPoints(reader, tsvPolygonColumn, SyntheticNuclei.IMAGE_WIDTH,
+						SyntheticNuclei.IMAGE_HEIGHT, outPoints);
+				bh.consume(outPoints.getCoords());
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package u24.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+import u24.mongodb.nuclear.segmentation.InputParameters;
+import u24.mongodb.nuclear.segmentation.PolygonBuffer;
+import u24.mongodb.nuclear.segmentation.ProcessCSVFeaturePolygonFile;
+
+/**
+ * JTS polygon simplification of one polygon: the simplifier alone, and the
+ * CSV path with --simplify, which also parses and normalizes the points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimplifyBenchmark {
+	private static final double TOLERANCE = 0.1; // as ProcessCSVFeaturePolygonFile
+
+	@Param({"64", "256", "1024"})
+	public int numPoints;
+
+	private Polygon polygon;
+	private String csvPolygon;
+	private ProcessCSVFeaturePolygonFile csvProcessor;
+	private PolygonBuffer outPoints;
+
+	@Setup
+	public void setup() {
+		double[] coords = new SyntheticNuclei(42).nextPolygon(numPoints);
+		Coordinate[] ring = new Coordinate[numPoints + 1];
+		for (int i = 0; i < numPoints; i++)
+			ring[i] = new Coordinate(coords[2 * i], coords[2 * i + 1]);
+		ring[numPoints] = ring[0];
+		GeometryFactory geomFactory = new GeometryFactory();
+		polygon = geomFactory.createPolygon(geomFactory.createLinearRing(ring), null);
+		csvPolygon = SyntheticNuclei.toCSVPolygon(coords);
+
+		InputParameters inputParams = new InputParameters();
+		inputParams.doSimplify = true;
+		csvProcessor = new ProcessCSVFeaturePolygonFile(null, null, null, null, inputParams, null);
+		outPoints = new PolygonBuffer();
+	}
+
+	@Benchmark
+	public Geometry topologyPreserving() {
+		TopologyPreservingSimplifier tpSimp = new TopologyPreservingSimplifier(polygon);
+		tpSimp.setDistanceTolerance(TOLERANCE);
+		return tpSimp.getResultGeometry();
+	}
+
+	@Benchmark
+	public void csvSimplifiedPoints(Blackhole bh) {
+		csvProcessor.getNormalizedPoints(csvPolygon, SyntheticNuclei.IMAGE_WIDTH,
+				SyntheticNuclei.IMAGE_HEIGHT, outPoints);
+		bh.consume(outPoints.getCoords());
+	}
+}
@@ -0,0 +1,232 @@
+package u24.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Synthetic nucleus boundaries for the benchmarks: jittered ellipses in the
+ * pixel coordinates of a whole slide image, in the polygon formats of the
+ * loader inputs. Generated from a fixed seed, so every run gets the same data.
+ */
+public class SyntheticNuclei {
+	public static final int IMAGE_WIDTH  = 100000;
+	public static final int IMAGE_HEIGHT = 80000;
+
+	private static final double MIN_RADIUS = 6.0;   // pixels, nuclei at 40x
+	private static final double MAX_RADIUS = 18.0;
+	private static final double JITTER     = 0.15;  // of the radius
+	private static final int    MASK_SPACING = 40;  // pixels between nucleus centers in a mask
+
+	private Random rand;
+
+	public SyntheticNuclei(long seed) {
+		rand = new Random(seed);
+	}
+
+	/**
+	 * Boundary of the next nucleus as x0,y0,x1,y1,... in whole pixels.
+	 * The polygon is open, like PolygonBuffer.
+	 */
+	public double[] nextPolygon(int numPoints) {
+		double cx = MAX_RADIUS * 2 + rand.nextDouble() * (IMAGE_WIDTH - MAX_RADIUS * 4);
+		double cy = MAX_RADIUS * 2 + rand.nextDouble() * (IMAGE_HEIGHT - MAX_RADIUS * 4);
+		double rx = MIN_RADIUS + rand.nextDouble() * (MAX_RADIUS - MIN_RADIUS);
+		double ry = rx * (0.6 + rand.nextDouble() * 0.4);
+		double angle = rand.nextDouble() * Math.PI;
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+
+		double[] coords = new double[numPoints * 2];
+		for (int i = 0; i < numPoints; i++) {
+			double t = 2 * Math.PI * i / numPoints;
+			double r = 1.0 + (rand.nextDouble() - 0.5) * 2 * JITTER;
+			double x = rx * r * Math.cos(t);
+			double y = ry * r * Math.sin(t);
+			coords[2 * i]     = Math.rint(cx + x * cos - y * sin);
+			coords[2 * i + 1] = Math.rint(cy + x * sin + y * cos);
+		}
+		return coords;
+	}
+
+	/**
+	 * Area of the polygon (shoelace formula).
+	 */
+	public static double area(double[] coords) {
+		int n = coords.length / 2;
+		double sum = 0;
+		for (int i = 0, j = n - 1; i < n; j = i++)
+			sum += coords[2 * j] * coords[2 * i + 1] - coords[2 * i] * coords[2 * j + 1];
+		return Math.abs(sum) / 2;
+	}
+
+	/**
+	 * The CSV Polygon column: [x0:y0:x1:y1:...]
+	 */
+	public static String toCSVPolygon(double[] coords) {
+		StringBuilder sb = new StringBuilder(coords.length * 6);
+		sb.append('[');
+		for (int i = 0; i < coords.length; i++) {
+			if (i > 0)
+				sb.append(':');
+			sb.append((long) coords[i]);
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * The TSV Polygon column: x0,y0;x1,y1;...
+	 */
+	public static String toTSVPolygon(double[] coords) {
+		StringBuilder sb = new StringBuilder(coords.length * 6);
+		for (int i = 0; i < coords.length; i += 2) {
+			if (i > 0)
+				sb.append(';');
+			sb.append((long) coords[i]).append(',').append((long) coords[i + 1]);
+		}
+		return sb.toString();
+	}
+
+	public static ArrayList<Double> toList(double[] coords) {
+		ArrayList<Double> points = new ArrayList<>(coords.length);
+		for (double c : coords)
+			points.add(c);
+		return points;
+	}
+
+	/**
+	 * Scalar features of a nucleus, as in the CSV feature files.
+	 */
+	public static final String[] FEATURE_NAMES = {
+		"AreaInPixels", "PhysicalSize", "Perimeter", "Eccentricity", "Circularity",
+		"MajorAxisLength", "MinorAxisLength", "Extent", "Solidity", "FSD1",
+		"FSD2", "FSD3", "FSD4", "FSD5", "FSD6",
+		"HematoxylinMeanIntensity", "HematoxylinMeanMedianDifferenceIntensity",
+		"HematoxylinMaxIntensity", "HematoxylinMinIntensity", "HematoxylinStdIntensity"
+	};
+
+	public double[] nextFeatures() {
+		double[] values = new double[FEATURE_NAMES.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = rand.nextDouble() * 100;
+		return values;
+	}
+
+	/**
+	 * QUIP CSV file: the features, AreaInPixels first, and the Polygon column last.
+	 */
+	public void writeCSV(File file, int numNuclei, int numPoints) throws IOException {
+		Writer out = openWriter(file);
+		try {
+			for (String name : FEATURE_NAMES)
+				out.write(name + ",");
+			out.write("Polygon\n");
+			for (int i = 0; i < numNuclei; i++) {
+				double[] coords = nextPolygon(numPoints);
+				double[] features = nextFeatures();
+				features[0] = area(coords);
+				for (double value : features)
+					out.write((float) value + ",");
+				out.write(toCSVPolygon(coords));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * QUIP TSV file: three identifier columns, the features and the Polygon column last.
+	 */
+	public void writeTSV(File file, int numNuclei, int numPoints) throws IOException {
+		Writer out = openWriter(file);
+		try {
+			out.write("Identifier\tCentroidX\tCentroidY\tArea");
+			for (int f = 1; f < FEATURE_NAMES.length; f++)
+				out.write("\t" + FEATURE_NAMES[f]);
+			out.write("\tPolygon\n");
+			for (int i = 0; i < numNuclei; i++) {
+				double[] coords = nextPolygon(numPoints);
+				double[] features = nextFeatures();
+				features[0] = area(coords);
+				out.write(i + "\t" + (long) coords[0] + "\t" + (long) coords[1]);
+				for (double value : features)
+					out.write("\t" + (float) value);
+				out.write('\t');
+				out.write(toTSVPolygon(coords));
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Aperio ImageScope annotation file with one Region per nucleus.
+	 */
+	public void writeAperioXML(File file, int numNuclei, int numPoints) throws IOException {
+		Writer out = openWriter(file);
+		try {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<Annotations MicronsPerPixel=\"0.250000\">\n");
+			out.write("<Annotation Id=\"1\" Type=\"4\"><Regions>\n");
+			for (int i = 0; i < numNuclei; i++) {
+				double[] coords = nextPolygon(numPoints);
+				out.write("<Region Id=\"" + (i + 1) + "\" Type=\"0\" Area=\"" + area(coords) + "\"><Vertices>\n");
+				for (int j = 0; j < coords.length; j += 2)
+					out.write("<Vertex X=\"" + coords[j] + "\" Y=\"" + coords[j + 1] + "\"/>\n");
+				out.write("</Vertices></Region>\n");
+			}
+			out.write("</Regions></Annotation>\n</Annotations>\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Binary mask PNG with nuclei painted as filled ellipses on a jittered grid.
+	 * Returns the number of nuclei.
+	 */
+	public int writeMask(File file, int width, int height) throws IOException {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = img.createGraphics();
+		g.setColor(Color.WHITE);
+		int count = 0;
+		for (int y = MASK_SPACING / 2; y < height; y += MASK_SPACING) {
+			for (int x = MASK_SPACING / 2; x < width; x += MASK_SPACING) {
+				if (rand.nextDouble() < 0.3)
+					continue;
+				int w = (int) (2 * (MIN_RADIUS + rand.nextDouble() * (MAX_RADIUS - MIN_RADIUS) * 0.6));
+				int h = (int) (w * (0.6 + rand.nextDouble() * 0.4));
+				g.fillOval(x - w / 2 + rand.nextInt(7) - 3, y - h / 2 + rand.nextInt(7) - 3, w, h);
+				count++;
+			}
+		}
+		g.dispose();
+		if (!ImageIO.write(img, "png", file))
+			throw new IOException("Cannot write mask file: " + file);
+		return count;
+	}
+
+	/**
+	 * Side of a square mask holding about numNuclei nuclei.
+	 */
+	public static int getMaskSize(int numNuclei) {
+		return (int) Math.ceil(Math.sqrt(numNuclei / 0.7)) * MASK_SPACING;
+	}
+
+	private static Writer openWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+	}
+}
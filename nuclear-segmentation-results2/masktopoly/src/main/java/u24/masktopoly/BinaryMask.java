@@ -0,0 +1,153 @@
+package u24.masktopoly;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Binary mask stored as one byte per pixel (0 or 1) with a 1-pixel
+ * border of zeros around the image, so that neighbours of every image
+ * pixel can be read without bounds checks.
+ */
+public class BinaryMask {
+	private byte[] pixels;
+	private int width;
+	private int height;
+	private int stride;
+
+	public BinaryMask(int width, int height) {
+		this.width  = width;
+		this.height = height;
+		this.stride = width + 2;
+		this.pixels = new byte[stride * (height + 2)];
+	}
+
+	/**
+	 * Read a mask image. Any non-zero pixel is foreground.
+	 */
+	public static BinaryMask read(String inpFile) throws IOException {
+		BufferedImage img = ImageIO.read(new File(inpFile));
+		if (img == null)
+			throw new IOException("Cannot read mask file: " + inpFile);
+		BinaryMask mask = new BinaryMask(img.getWidth(), img.getHeight());
+		mask.setPixels(img.getRaster(), 0, 0);
+		return mask;
+	}
+
+	/**
+	 * Open a reader for reading regions of a mask image with readRegion.
+	 * The caller disposes of the reader and closes its input stream.
+	 */
+	public static ImageReader openReader(String inpFile) throws IOException {
+		ImageInputStream iis = ImageIO.createImageInputStream(new File(inpFile));
+		if (iis == null)
+			throw new IOException("Cannot read mask file: " + inpFile);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (!readers.hasNext()) {
+			iis.close();
+			throw new IOException("No image reader for mask file: " + inpFile);
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(iis);
+		return reader;
+	}
+
+	public static void closeReader(ImageReader reader) {
+		try {
+			Object input = reader.getInput();
+			if (input instanceof ImageInputStream)
+				((ImageInputStream) input).close();
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+		reader.dispose();
+	}
+
+	/**
+	 * Read the region [x,x+w) x [y,y+h) of the first image of the reader.
+	 * Formats that store tiles or strips decode only the part that is needed.
+	 */
+	public static BinaryMask readRegion(ImageReader reader, int x, int y, int w, int h) throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(new Rectangle(x, y, w, h));
+		BufferedImage img = reader.read(0, param);
+		BinaryMask mask = new BinaryMask(img.getWidth(), img.getHeight());
+		mask.setPixels(img.getRaster(), 0, 0);
+		return mask;
+	}
+
+	/**
+	 * Copy the raster into the mask with its top-left corner at (x,y).
+	 */
+	void setPixels(Raster raster, int x, int y) {
+		int w = raster.getWidth();
+		int h = raster.getHeight();
+		int bands = raster.getNumBands();
+		int[] rowSamples = new int[w];
+		for (int r = 0; r < h; r++) {
+			int rowStart = (y + r + 1) * stride + x + 1;
+			for (int b = 0; b < bands; b++) {
+				raster.getSamples(raster.getMinX(), raster.getMinY() + r, w, 1, b, rowSamples);
+				for (int c = 0; c < w; c++) {
+					if (rowSamples[c] != 0)
+						pixels[rowStart + c] = 1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy of the region [x,x+w) x [y,y+h) as a new mask.
+	 */
+	public BinaryMask copyRegion(int x, int y, int w, int h) {
+		BinaryMask region = new BinaryMask(w, h);
+		for (int r = 0; r < h; r++)
+			System.arraycopy(pixels, (y + r + 1) * stride + x + 1, region.pixels, (r + 1) * region.stride + 1, w);
+		return region;
+	}
+
+	/**
+	 * Copy rows [srcY, srcY+count) of a mask of the same width to rows [dstY, dstY+count).
+	 */
+	void copyRows(BinaryMask src, int srcY, int dstY, int count) {
+		System.arraycopy(src.pixels, (srcY + 1) * stride, pixels, (dstY + 1) * stride, count * stride);
+	}
+
+	public void set(int x, int y, boolean value) {
+		pixels[(y + 1) * stride + x + 1] = (byte) (value ? 1 : 0);
+	}
+
+	public boolean get(int x, int y) {
+		return pixels[(y + 1) * stride + x + 1] != 0;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Row length of the padded pixel array.
+	 */
+	int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Padded pixel array; image pixel (x,y) is at (y+1)*stride + x+1.
+	 */
+	byte[] getPixels() {
+		return pixels;
+	}
+}
@@ -0,0 +1,421 @@
+package u24.masktopoly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Point;
+
+/**
+ * Pure-Java replacement for OpenCV findContours/approxPolyDP/contourArea.
+ *
+ * Borders are followed with the Suzuki-Abe algorithm, so both outer borders
+ * and hole borders are returned, as with findContours(RETR_CCOMP).
+ * Straight runs are compressed to their end points (CHAIN_APPROX_SIMPLE) and
+ * the result is optionally simplified with Douglas-Peucker on a closed curve.
+ * Area (shoelace formula) and average point are computed in one pass.
+ *
+ * Point coordinates are in the frame of the 1-pixel padded mask, i.e. shifted
+ * by (+1,+1), like the OpenCV path which pads with copyMakeBorder, plus an
+ * optional offset used for tiles.
+ * An instance reuses its work arrays and is not thread-safe.
+ */
+public class ContourTracer {
+	// 8-neighbourhood in clockwise order (y axis pointing down): E, SE, S, SW, W, NW, N, NE
+	private static final int[] DX = { 1, 1, 0, -1, -1, -1, 0, 1 };
+	private static final int[] DY = { 0, 1, 1, 1, 0, -1, -1, -1 };
+
+	private static final byte VISITED     = 2;
+	private static final byte VISITED_EOB = -1; // border pixel with background on its right
+
+	private double epsilon;
+	private double areaThreshold;
+	private int offsetX;
+	private int offsetY;
+
+	private int[] chainX = new int[1024];
+	private int[] chainY = new int[1024];
+	private int chainLen;
+
+	private int[] polyX = new int[1024];
+	private int[] polyY = new int[1024];
+	private int polyLen;
+
+	private int[] dstX = new int[1024];
+	private int[] dstY = new int[1024];
+	private int[] stack = new int[256];
+
+	/**
+	 * @param epsilon Douglas-Peucker tolerance in pixels; 0 keeps all border corners.
+	 * @param areaThreshold polygons with area not larger than this are dropped.
+	 */
+	public ContourTracer(double epsilon, double areaThreshold) {
+		this.epsilon = epsilon;
+		this.areaThreshold = areaThreshold;
+	}
+
+	/**
+	 * Trace all borders of the mask. Visited borders are marked in the mask
+	 * pixels while tracing and reset to 1 afterwards.
+	 */
+	public List<PolygonData> trace(BinaryMask mask) {
+		List<PolygonData> out_poly = new ArrayList<PolygonData>();
+		trace(mask, null, null, out_poly);
+		clearMarks(mask);
+		return out_poly;
+	}
+
+	private static void clearMarks(BinaryMask mask) {
+		byte[] px = mask.getPixels();
+		for (int p = 0; p < px.length; p++) {
+			if (px[p] != 0)
+				px[p] = 1;
+		}
+	}
+
+	/**
+	 * Shift all output coordinates, e.g. by the position of a tile in the whole mask.
+	 */
+	void setOffset(int offsetX, int offsetY) {
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+	}
+
+	/**
+	 * Trace all borders of the mask and leave the marks in place.
+	 * If labels is given (one int per padded pixel), it receives the index of
+	 * the border that last marked each pixel, as in Suzuki-Abe, and every border
+	 * is recorded in traced, including borders dropped by the area threshold.
+	 */
+	void trace(BinaryMask mask, int[] labels, List<TracedContour> traced, List<PolygonData> out_poly) {
+		byte[] px = mask.getPixels();
+		int stride = mask.getStride();
+		int width = mask.getWidth();
+		int height = mask.getHeight();
+		for (int i = 1; i <= height; i++) {
+			int lastBorder = -1; // LNBD: last border met on this row
+			int p = i * stride + 1;
+			for (int j = 1; j <= width; j++, p++) {
+				byte f = px[p];
+				if (f == 0)
+					continue;
+				boolean hole;
+				if (f == 1 && px[p - 1] == 0) {
+					hole = false;
+				} else if (f > 0 && px[p + 1] == 0) {
+					hole = true;
+				} else {
+					if (labels != null && f != 1)
+						lastBorder = labels[p];
+					continue;
+				}
+
+				int id = (traced != null) ? traced.size() : -1;
+				// outer borders start from the west neighbour, holes from the east neighbour
+				followBorder(px, labels, id, stride, p, hole ? 0 : 4);
+				PolygonData poly = makePolygon();
+				if (traced != null) {
+					TracedContour tc = new TracedContour(poly, hole, chainX[0], chainY[0]);
+					for (int k = 0; k < chainLen; k++)
+						tc.include(chainX[k], chainY[k]);
+					// a hole belongs to the component of the border met before it on this row
+					tc.component = (hole && lastBorder >= 0) ? traced.get(lastBorder).component : id;
+					traced.add(tc);
+				}
+				if (poly != null && out_poly != null)
+					out_poly.add(poly);
+				if (labels != null && px[p] != 1)
+					lastBorder = labels[p];
+			}
+		}
+	}
+
+	/**
+	 * Suzuki-Abe border following from pixel p0; startDir points to its background neighbour.
+	 * The border pixels are left in chainX/chainY.
+	 */
+	private void followBorder(byte[] px, int[] labels, int id, int stride, int p0, int startDir) {
+		int[] off = new int[8];
+		for (int d = 0; d < 8; d++)
+			off[d] = DY[d] * stride + DX[d];
+
+		chainLen = 0;
+
+		// Look clockwise for the first non-zero neighbour
+		int d1 = -1;
+		for (int k = 0; k < 8; k++) {
+			int d = (startDir + k) & 7;
+			if (px[p0 + off[d]] != 0) {
+				d1 = d;
+				break;
+			}
+		}
+		if (d1 < 0) { // isolated pixel
+			px[p0] = VISITED_EOB;
+			if (labels != null)
+				labels[p0] = id;
+			addChainPoint(p0 % stride, p0 / stride);
+			return;
+		}
+
+		int p1 = p0 + off[d1];
+		int p3 = p0;
+		int dirTo2 = d1;
+		while (true) {
+			addChainPoint(p3 % stride, p3 / stride);
+
+			// Look counterclockwise, starting after the previous pixel
+			boolean eastIsBackground = false;
+			int d4 = dirTo2;
+			for (int k = 1; k <= 8; k++) {
+				int d = (dirTo2 - k) & 7;
+				if (px[p3 + off[d]] != 0) {
+					d4 = d;
+					break;
+				}
+				if (d == 0)
+					eastIsBackground = true;
+			}
+			if (eastIsBackground) {
+				px[p3] = VISITED_EOB;
+				if (labels != null)
+					labels[p3] = id;
+			} else if (px[p3] == 1) {
+				px[p3] = VISITED;
+				if (labels != null)
+					labels[p3] = id;
+			}
+
+			int p4 = p3 + off[d4];
+			if (p4 == p0 && p3 == p1)
+				break;
+			dirTo2 = (d4 + 4) & 7;
+			p3 = p4;
+		}
+	}
+
+	private void addChainPoint(int x, int y) {
+		if (chainLen == chainX.length) {
+			chainX = Arrays.copyOf(chainX, chainLen * 2);
+			chainY = Arrays.copyOf(chainY, chainLen * 2);
+		}
+		chainX[chainLen] = x + offsetX;
+		chainY[chainLen] = y + offsetY;
+		chainLen++;
+	}
+
+	/**
+	 * Compress, simplify and measure the current border.
+	 */
+	private PolygonData makePolygon() {
+		compressChain();
+		if (epsilon > 0 && polyLen > 0)
+			simplify();
+		if (polyLen <= 2)
+			return null;
+
+		// Shoelace area and average point in one pass
+		double area2 = 0, sumX = 0, sumY = 0;
+		for (int k = 0; k < polyLen; k++) {
+			int n = (k + 1 == polyLen) ? 0 : k + 1;
+			area2 += (double) polyX[k] * polyY[n] - (double) polyX[n] * polyY[k];
+			sumX  += polyX[k];
+			sumY  += polyY[k];
+		}
+		double area = Math.abs(area2) / 2.0;
+		if (area <= areaThreshold)
+			return null;
+
+		PolygonData poly_data = new PolygonData();
+		poly_data.mid_x  = sumX / polyLen;
+		poly_data.mid_y  = sumY / polyLen;
+		poly_data.area   = area;
+		poly_data.points = new Point[polyLen];
+		for (int k = 0; k < polyLen; k++)
+			poly_data.points[k] = new Point(polyX[k], polyY[k]);
+		return poly_data;
+	}
+
+	/**
+	 * Keep only the points where the chain changes direction.
+	 */
+	private void compressChain() {
+		ensurePolyCapacity(chainLen);
+		polyLen = 0;
+		if (chainLen < 3) {
+			for (int k = 0; k < chainLen; k++)
+				addPolyPoint(chainX[k], chainY[k]);
+			return;
+		}
+		for (int k = 0; k < chainLen; k++) {
+			int prev = (k == 0) ? chainLen - 1 : k - 1;
+			int next = (k + 1 == chainLen) ? 0 : k + 1;
+			int dx1 = chainX[k] - chainX[prev], dy1 = chainY[k] - chainY[prev];
+			int dx2 = chainX[next] - chainX[k], dy2 = chainY[next] - chainY[k];
+			if (dx1 != dx2 || dy1 != dy2)
+				addPolyPoint(chainX[k], chainY[k]);
+		}
+	}
+
+	private void ensurePolyCapacity(int n) {
+		if (polyX.length < n) {
+			polyX = new int[n];
+			polyY = new int[n];
+		}
+	}
+
+	private void addPolyPoint(int x, int y) {
+		polyX[polyLen] = x;
+		polyY[polyLen] = y;
+		polyLen++;
+	}
+
+	/**
+	 * Douglas-Peucker on the closed polygon in polyX/polyY, following
+	 * approxPolyDP(closed=true): the curve is split between two approximately
+	 * farthest points, each half is simplified with an explicit stack, and
+	 * points left on almost straight lines are removed at the end.
+	 */
+	private void simplify() {
+		int count = polyLen;
+		double eps = epsilon * epsilon;
+		if (dstX.length < count) {
+			dstX = new int[count];
+			dstY = new int[count];
+		}
+		int newCount = 0;
+
+		// Find approximately the two farthest points of the contour
+		int pos = 0;
+		int far = 0;
+		double maxDist = 0;
+		for (int iter = 0; iter < 3; iter++) {
+			pos = (pos + far) % count;
+			far = 0;
+			maxDist = 0;
+			for (int j = 1; j < count; j++) {
+				int k = (pos + j) % count;
+				double dx = polyX[k] - polyX[pos], dy = polyY[k] - polyY[pos];
+				double dist = dx * dx + dy * dy;
+				if (dist > maxDist) {
+					maxDist = dist;
+					far = j;
+				}
+			}
+		}
+		if (maxDist <= eps) {
+			dstX[0] = polyX[pos];
+			dstY[0] = polyY[pos];
+			copyFromDst(1);
+			return;
+		}
+
+		int sp = 0;
+		int farIdx = (pos + far) % count;
+		sp = push(sp, farIdx, pos);
+		sp = push(sp, pos, farIdx);
+		while (sp > 0) {
+			int last  = stack[--sp];
+			int first = stack[--sp];
+			int ax = polyX[first], ay = polyY[first];
+			boolean withinEps = true;
+			int maxIdx = -1;
+			int k = (first + 1) % count;
+			if (k != last) {
+				double dx = polyX[last] - ax, dy = polyY[last] - ay;
+				double maxCross = 0;
+				for (; k != last; k = (k + 1) % count) {
+					double cross = Math.abs((polyY[k] - ay) * dx - (polyX[k] - ax) * dy);
+					if (cross > maxCross) {
+						maxCross = cross;
+						maxIdx = k;
+					}
+				}
+				withinEps = maxCross * maxCross <= eps * (dx * dx + dy * dy);
+			}
+			if (withinEps) {
+				dstX[newCount] = ax;
+				dstY[newCount] = ay;
+				newCount++;
+			} else {
+				sp = push(sp, maxIdx, last);
+				sp = push(sp, first, maxIdx);
+			}
+		}
+
+		// Remove points on almost straight lines
+		count = newCount;
+		int rpos = count - 1;
+		int sx = dstX[rpos], sy = dstY[rpos];
+		rpos = 0;
+		int wpos = 0;
+		int px = dstX[rpos], py = dstY[rpos];
+		rpos = (rpos + 1) % count;
+		for (int i = 0; i < count && newCount > 2; i++) {
+			int ex = dstX[rpos], ey = dstY[rpos];
+			rpos = (rpos + 1) % count;
+			double dx = ex - sx, dy = ey - sy;
+			double dist = Math.abs((px - sx) * dy - (py - sy) * dx);
+			double innerProduct = (double) (px - sx) * (ex - px) + (double) (py - sy) * (ey - py);
+			if (dist * dist <= 0.5 * eps * (dx * dx + dy * dy) && dx != 0 && dy != 0 && innerProduct >= 0) {
+				newCount--;
+				dstX[wpos] = sx = ex;
+				dstY[wpos] = sy = ey;
+				wpos = (wpos + 1) % count;
+				px = dstX[rpos];
+				py = dstY[rpos];
+				rpos = (rpos + 1) % count;
+				i++;
+				continue;
+			}
+			dstX[wpos] = sx = px;
+			dstY[wpos] = sy = py;
+			wpos = (wpos + 1) % count;
+			px = ex;
+			py = ey;
+		}
+		copyFromDst(newCount);
+	}
+
+	private void copyFromDst(int n) {
+		System.arraycopy(dstX, 0, polyX, 0, n);
+		System.arraycopy(dstY, 0, polyY, 0, n);
+		polyLen = n;
+	}
+
+	private int push(int sp, int first, int last) {
+		if (sp + 2 > stack.length)
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		stack[sp++] = first;
+		stack[sp++] = last;
+		return sp;
+	}
+
+	/**
+	 * A traced border with its start pixel and bounding box,
+	 * in output coordinates. poly is null if the border was dropped.
+	 */
+	static class TracedContour {
+		PolygonData poly;
+		boolean hole;
+		int startX, startY;
+		int minX, minY, maxX, maxY;
+		int component;  // index of the outer border of the component
+
+		TracedContour(PolygonData poly, boolean hole, int startX, int startY) {
+			this.poly = poly;
+			this.hole = hole;
+			this.startX = startX;
+			this.startY = startY;
+			this.minX = this.maxX = startX;
+			this.minY = this.maxY = startY;
+		}
+
+		void include(int x, int y) {
+			if (x < minX) minX = x;
+			if (x > maxX) maxX = x;
+			if (y < minY) minY = y;
+			if (y > maxY) maxY = y;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package u24.masktopoly;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one polygon extraction (MaskToPoly.extractPolygons,
+ * extractPolygonsTiled). The duration is the tracing time; tiled, it includes reading the mask.
+ */
+@Name("u24.masktopoly.MaskExtracted")
+@Label("Mask Extracted")
+@Category({"U24", "Mask To Poly"})
+@Description("Polygons extracted from a binary mask")
+class MaskExtractedEvent extends Event {
+	@Label("File")
+	String file;
+
+	@Label("Backend")
+	String backend;
+
+	@Label("Tiled")
+	boolean tiled;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Polygons")
+	int polygons;
+}
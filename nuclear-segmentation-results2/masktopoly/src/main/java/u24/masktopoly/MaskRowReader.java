@@ -0,0 +1,272 @@
+package u24.masktopoly;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageReader;
+
+/**
+ * Reads a mask image once from top to bottom, a number of rows at a time.
+ * Non-interlaced PNG files are inflated and unfiltered row by row, so each
+ * row is decoded once and only the rows asked for are held in memory.
+ * Other formats are read with BinaryMask.readRegion.
+ * Any non-zero sample is foreground, as in BinaryMask.read.
+ */
+class MaskRowReader {
+	private static final byte[] PNG_SIGNATURE = { (byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n' };
+
+	private ImageReader reader = null;  // formats other than PNG
+	private DataInputStream png = null;  // inflated PNG scanlines
+	private int width;
+	private int height;
+	private int bitDepth;
+	private int pixelBytes; // bytes per pixel, at least 1
+	private byte[] row;
+	private byte[] prevRow;
+	private int nextRow = 0;
+
+	MaskRowReader(String inpFile) throws IOException {
+		if (!openPNG(inpFile)) {
+			reader = BinaryMask.openReader(inpFile);
+			try {
+				width  = reader.getWidth(0);
+				height = reader.getHeight(0);
+			} catch (IOException e) {
+				BinaryMask.closeReader(reader);
+				throw e;
+			}
+		}
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Read the next count rows of the image into rows [dstY, dstY+count) of dst,
+	 * which has the width of the image.
+	 */
+	void readRows(BinaryMask dst, int dstY, int count) throws IOException {
+		if (count <= 0)
+			return;
+		if (png == null) {
+			BinaryMask rows = BinaryMask.readRegion(reader, 0, nextRow, width, count);
+			dst.copyRows(rows, 0, dstY, count);
+		} else {
+			byte[] pixels = dst.getPixels();
+			int stride = dst.getStride();
+			for (int r = 0; r < count; r++) {
+				readScanline();
+				setRow(pixels, (dstY + r + 1) * stride + 1);
+			}
+		}
+		nextRow += count;
+	}
+
+	void close() {
+		if (png == null) {
+			BinaryMask.closeReader(reader);
+			return;
+		}
+		try {
+			png.close();
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the PNG header. Returns false, with nothing open, if the file
+	 * is not a PNG or is interlaced.
+	 */
+	private boolean openPNG(String inpFile) throws IOException {
+		DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(inpFile), 1 << 16));
+		try {
+			byte[] signature = new byte[PNG_SIGNATURE.length];
+			int n = file.read(signature);
+			if (n != signature.length || !Arrays.equals(signature, PNG_SIGNATURE)) {
+				file.close();
+				return false;
+			}
+			int length = file.readInt();
+			if (file.readInt() != chunkType("IHDR") || length < 13)
+				throw new IOException("Missing PNG header: " + inpFile);
+			width  = file.readInt();
+			height = file.readInt();
+			bitDepth = file.readUnsignedByte();
+			int colorType = file.readUnsignedByte();
+			file.readUnsignedByte(); // compression
+			file.readUnsignedByte(); // filter method
+			int interlace = file.readUnsignedByte();
+			skipFully(file, length - 13 + 4); // rest of the chunk and the CRC
+			if (interlace != 0) {
+				file.close();
+				return false;
+			}
+
+			int channels;
+			switch (colorType) {
+			case 0: case 3: channels = 1; break; // gray, palette index
+			case 2: channels = 3; break;
+			case 4: channels = 2; break;
+			case 6: channels = 4; break;
+			default: throw new IOException("Unknown PNG color type " + colorType + ": " + inpFile);
+			}
+			int rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8);
+			pixelBytes = Math.max(1, channels * bitDepth / 8);
+			row     = new byte[rowBytes];
+			prevRow = new byte[rowBytes];
+			png = new DataInputStream(new InflaterInputStream(new ImageDataStream(file), new Inflater(), 1 << 16));
+			return true;
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private void readScanline() throws IOException {
+		byte[] prev = row; // the row read last; keep it for the filters
+		row = prevRow;
+		prevRow = prev;
+		int filter = png.readUnsignedByte();
+		png.readFully(row);
+		int bpp = pixelBytes;
+		switch (filter) {
+		case 0: // none
+			break;
+		case 1: // sub
+			for (int i = bpp; i < row.length; i++)
+				row[i] += row[i - bpp];
+			break;
+		case 2: // up
+			for (int i = 0; i < row.length; i++)
+				row[i] += prevRow[i];
+			break;
+		case 3: // average
+			for (int i = 0; i < row.length; i++) {
+				int left = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+				row[i] += (left + (prevRow[i] & 0xff)) >> 1;
+			}
+			break;
+		case 4: // paeth
+			for (int i = 0; i < row.length; i++) {
+				int a = (i >= bpp) ? row[i - bpp] & 0xff : 0;
+				int b = prevRow[i] & 0xff;
+				int c = (i >= bpp) ? prevRow[i - bpp] & 0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+				row[i] += (pa <= pb && pa <= pc) ? a : ((pb <= pc) ? b : c);
+			}
+			break;
+		default:
+			throw new IOException("Bad PNG filter type " + filter + " in row " + nextRow);
+		}
+	}
+
+	/**
+	 * Set the foreground pixels of the decoded row, starting at pixels[start].
+	 */
+	private void setRow(byte[] pixels, int start) {
+		if (bitDepth < 8) {
+			int mask = (1 << bitDepth) - 1;
+			for (int x = 0; x < width; x++) {
+				int bit = x * bitDepth;
+				if (((row[bit >> 3] >> (8 - bitDepth - (bit & 7))) & mask) != 0)
+					pixels[start + x] = 1;
+			}
+			return;
+		}
+		for (int x = 0, i = 0; x < width; x++) {
+			for (int end = i + pixelBytes; i < end; i++) {
+				if (row[i] != 0) {
+					pixels[start + x] = 1;
+					i = end;
+					break;
+				}
+			}
+		}
+	}
+
+	private static int chunkType(String type) {
+		return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+	}
+
+	private static void skipFully(DataInputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				in.readByte(); // throws EOFException at the end
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * The data of the IDAT chunks as one stream; other chunks are skipped.
+	 */
+	private static class ImageDataStream extends InputStream {
+		private DataInputStream in;
+		private int remaining = 0; // bytes left in the current IDAT chunk
+		private boolean end = false;
+
+		ImageDataStream(DataInputStream in) {
+			this.in = in;
+		}
+
+		private boolean nextChunk() throws IOException {
+			while (remaining == 0 && !end) {
+				int length = in.readInt();
+				int type = in.readInt();
+				if (type == chunkType("IDAT")) {
+					remaining = length;
+					if (length == 0)
+						skipFully(in, 4);
+				} else if (type == chunkType("IEND")) {
+					end = true;
+				} else {
+					skipFully(in, length + 4L);
+				}
+			}
+			return !end;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			try {
+				if (!nextChunk())
+					return -1;
+			} catch (EOFException e) {
+				return -1; // truncated file; the inflater reports it
+			}
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n < 0)
+				return -1;
+			remaining -= n;
+			if (remaining == 0)
+				skipFully(in, 4); // CRC
+			return n;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
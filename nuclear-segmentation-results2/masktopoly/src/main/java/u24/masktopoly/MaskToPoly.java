@@ -5,6 +5,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -17,48 +18,107 @@ import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 public class MaskToPoly {
+	public static final String BACKEND_OPENCV = "opencv";
+	public static final String BACKEND_JAVA   = "java";
+
 	private Mat inputImg;
+	private BinaryMask inputMask;
+	private boolean useOpenCV;
 	private boolean normalize;
 	private List<MatOfPoint>  contours;
 	private List<PolygonData> out_poly;
+	private int imgWidth;
+	private int imgHeight;
+	private String maskFile; // for the MaskExtracted events
 	private static double AREA_THRESHOLD = 4.0;
+	private static double APPROX_EPSILON = 2.0;
+	private static int    TILE_OVERLAP   = 128;
 
-	static{ System.loadLibrary(Core.NATIVE_LIBRARY_NAME); }
+	private static boolean openCVLoaded = false;
+	private static boolean openCVFailed = false;
 
 	public MaskToPoly() {
-		inputImg  = null;
-		contours  = null;
-		out_poly  = null;
-		normalize = false;
+		this(false, System.getProperty("masktopoly.backend", BACKEND_OPENCV));
 	}
 	
 	public MaskToPoly(boolean normalize) {
-		inputImg = null;
-		contours = null;
-		out_poly = null;
+		this(normalize, System.getProperty("masktopoly.backend", BACKEND_OPENCV));
+	}
+
+	/**
+	 * @param backend BACKEND_OPENCV or BACKEND_JAVA. If the OpenCV native library
+	 *                cannot be loaded, the Java contour tracer is used.
+	 */
+	public MaskToPoly(boolean normalize, String backend) {
+		inputImg  = null;
+		inputMask = null;
+		contours  = null;
+		out_poly  = null;
 		this.normalize = normalize;
+		this.useOpenCV = !BACKEND_JAVA.equalsIgnoreCase(backend) && loadOpenCV();
+	}
+
+	/**
+	 * Load the OpenCV native library on first use.
+	 */
+	private static synchronized boolean loadOpenCV() {
+		if (!openCVLoaded && !openCVFailed) {
+			try {
+				System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+				openCVLoaded = true;
+			} catch (UnsatisfiedLinkError e) {
+				openCVFailed = true;
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				System.err.println("Using the Java contour tracer.");
+			}
+		}
+		return openCVLoaded;
 	}
 	
 	public void doNormalization() {
 		this.normalize = true;
 	}
 
+	public boolean isOpenCV() {
+		return useOpenCV;
+	}
+
 	public int readMask(String inpFile) 
 	{
+		maskFile = inpFile;
+		if (!useOpenCV) {
+			try {
+				inputMask = BinaryMask.read(inpFile);
+			} catch (IOException e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+				inputMask = null;
+				return 1;
+			}
+			imgWidth  = inputMask.getWidth();
+			imgHeight = inputMask.getHeight();
+			return 0;
+		}
 		inputImg = Imgcodecs.imread(inpFile, CvType.CV_8UC1);
+		imgWidth  = (int) (inputImg.size().width);
+		imgHeight = (int) (inputImg.size().height);
 		return inputImg.empty()?1:0; 
 	}
 	
 	public int getImgWidth() {
-		return (int) (inputImg.size().width);
+		return imgWidth;
 	}
 	
 	public int getImgHeight() {
-		return (int) (inputImg.size().height);
+		return imgHeight;
 	}
 
 	public int extractContours()
 	{
+		if (!useOpenCV) {
+			out_poly = new ContourTracer(0, AREA_THRESHOLD).trace(inputMask);
+			return 0;
+		}
+
 		// Find contours
 		double width  = inputImg.size().width;
 		double height = inputImg.size().height;
@@ -104,6 +164,22 @@ public class MaskToPoly {
 
 	public int extractPolygons()
 	{
+		MaskExtractedEvent event = new MaskExtractedEvent();
+		event.begin();
+		try {
+			return traceMask();
+		} finally {
+			commitEvent(event, maskFile, false);
+		}
+	}
+
+	private int traceMask()
+	{
+		if (!useOpenCV) {
+			out_poly = new ContourTracer(APPROX_EPSILON, AREA_THRESHOLD).trace(inputMask);
+			return 0;
+		}
+
 		// Find contours
 		double width  = inputImg.size().width;
 		double height = inputImg.size().height;
@@ -118,7 +194,7 @@ public class MaskToPoly {
 		for (int i = 0; i < contours.size(); i++) {
 			MatOfPoint2f approxCurve = new MatOfPoint2f();
 			MatOfPoint2f inpCurve = new MatOfPoint2f(contours.get(i).toArray());
-		   	Imgproc.approxPolyDP(inpCurve, approxCurve, 2, true);
+		   	Imgproc.approxPolyDP(inpCurve, approxCurve, APPROX_EPSILON, true);
 			MatOfPoint outCurve = new MatOfPoint(approxCurve.toArray());
 
 			if (outCurve.toArray().length>2) {
@@ -154,12 +230,59 @@ public class MaskToPoly {
 		return 0;
 	}
 	
+	/**
+	 * Extract polygons from a mask without reading it as a whole.
+	 * The mask is read in tiles of tileSize x tileSize pixels plus an overlap,
+	 * which are traced in parallel on the pool with the Java contour tracer.
+	 * The polygons are the same as readMask and extractPolygons with the Java backend.
+	 */
+	public int extractPolygonsTiled(String inpFile, int tileSize, ForkJoinPool pool)
+	{
+		MaskExtractedEvent event = new MaskExtractedEvent();
+		event.begin();
+		try {
+			return traceMaskTiled(inpFile, tileSize, pool);
+		} finally {
+			commitEvent(event, inpFile, true);
+		}
+	}
+
+	private int traceMaskTiled(String inpFile, int tileSize, ForkJoinPool pool)
+	{
+		maskFile = inpFile;
+		try {
+			TiledPolygonExtractor extractor = new TiledPolygonExtractor(inpFile, tileSize, TILE_OVERLAP,
+					APPROX_EPSILON, AREA_THRESHOLD);
+			imgWidth  = extractor.getWidth();
+			imgHeight = extractor.getHeight();
+			out_poly  = extractor.extract(pool);
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			out_poly = new ArrayList<PolygonData>();
+			return 1;
+		}
+		return 0;
+	}
+
+	private void commitEvent(MaskExtractedEvent event, String inpFile, boolean tiled) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.file     = inpFile;
+			event.backend  = (useOpenCV && !tiled) ? BACKEND_OPENCV : BACKEND_JAVA;
+			event.tiled    = tiled;
+			event.width    = imgWidth;
+			event.height   = imgHeight;
+			event.polygons = (out_poly == null) ? 0 : out_poly.size();
+			event.commit();
+		}
+	}
+
 	public void normalizePoints() {
 		if (normalize) {
 			PolygonData polygon;
 			Point[] points;
-			double width  = inputImg.size().width;
-			double height = inputImg.size().height;
+			double width  = getImgWidth();
+			double height = getImgHeight();
 			for (int plg = 0; plg < out_poly.size(); plg++) {
 				polygon = out_poly.get(plg);
 				points = polygon.points;
@@ -218,8 +341,8 @@ public class MaskToPoly {
 	}
 
 	public static void main(String argv[]) {
-		if (argv.length!=4) {
-			System.out.println("Usage: <mask file> <shift_x> <shift_y> <output file>");
+		if (argv.length!=4 && argv.length!=5) {
+			System.out.println("Usage: <mask file> <shift_x> <shift_y> <output file> [opencv|java]");
 			return;
 		}
 
@@ -227,9 +350,13 @@ public class MaskToPoly {
 		int shift_x = Integer.parseInt(argv[1]);
 		int shift_y = Integer.parseInt(argv[2]);
 		String outFile = argv[3];
+		String backend = (argv.length==5)?argv[4]:BACKEND_OPENCV;
 
-		MaskToPoly m2p = new MaskToPoly();
-		m2p.readMask(inpFile);
+		MaskToPoly m2p = new MaskToPoly(false, backend);
+		if (m2p.readMask(inpFile)!=0) {
+			System.out.println("Error reading mask file '" + inpFile + "'");
+			return;
+		}
 		m2p.extractPolygons();
 		m2p.writePolygons(outFile,shift_x,shift_y);
 	
@@ -0,0 +1,306 @@
+package u24.masktopoly;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import javax.imageio.ImageReader;
+
+import u24.masktopoly.ContourTracer.TracedContour;
+
+/**
+ * Extracts polygons from a large mask tile by tile on a fork-join pool,
+ * without holding the whole mask in memory.
+ *
+ * The mask is read once from top to bottom (MaskRowReader) in bands of one
+ * tile row plus the overlap above and below; the overlap rows are carried
+ * from one band to the next. Only one band is in memory at a time (two while
+ * the overlap rows are copied), and the tiles of the band are traced in parallel.
+ * Tiles with an overlap around their core are cut from the band. A connected component is
+ * reported by the tile whose core contains its first pixel in raster order
+ * (the start of its outer border), and only if it does not touch an edge of
+ * the tile that lies inside the mask; its holes are reported with it.
+ * Components that do not fit in the overlap are traced again on a region
+ * grown around them, cut from the band while it lies within the band's rows
+ * and read from the file otherwise. Borders are returned in the order of their start pixels,
+ * so the output is the same as tracing the whole mask in one pass.
+ */
+public class TiledPolygonExtractor {
+	private String inpFile;
+	private int width;
+	private int height;
+	private int tileSize;
+	private int overlap;
+	private int tilesX;
+	private int tilesY;
+	private double epsilon;
+	private double areaThreshold;
+
+	private static final Comparator<TracedContour> START_ORDER = new Comparator<TracedContour>() {
+		public int compare(TracedContour a, TracedContour b) {
+			if (a.startY != b.startY)
+				return (a.startY < b.startY) ? -1 : 1;
+			return (a.startX < b.startX) ? -1 : ((a.startX == b.startX) ? 0 : 1);
+		}
+	};
+
+	public TiledPolygonExtractor(String inpFile, int tileSize, int overlap,
+			double epsilon, double areaThreshold) throws IOException {
+		this.inpFile = inpFile;
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.epsilon = epsilon;
+		this.areaThreshold = areaThreshold;
+
+		ImageReader reader = BinaryMask.openReader(inpFile);
+		try {
+			this.width  = reader.getWidth(0);
+			this.height = reader.getHeight(0);
+		} finally {
+			BinaryMask.closeReader(reader);
+		}
+		this.tilesX = (width + tileSize - 1) / tileSize;
+		this.tilesY = (height + tileSize - 1) / tileSize;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public List<PolygonData> extract(ForkJoinPool pool) throws IOException {
+		if (tilesX == 0 || tilesY == 0)
+			return new ArrayList<PolygonData>();
+
+		List<TracedContour> found = new ArrayList<TracedContour>();
+		MaskRowReader rows = new MaskRowReader(inpFile);
+		try {
+			BinaryMask band = null;
+			int bandY0 = 0, bandY1 = 0;
+			for (int ty = 0; ty < tilesY; ty++) {
+				int nextY0 = Math.max(0, ty * tileSize - overlap);
+				int nextY1 = Math.min(height, (ty + 1) * tileSize + overlap);
+				BinaryMask next = new BinaryMask(width, nextY1 - nextY0);
+				int carried = 0;
+				if (band != null) { // rows of the overlap read with the previous band
+					carried = bandY1 - nextY0;
+					next.copyRows(band, nextY0 - bandY0, 0, carried);
+				}
+				band = null; // free the previous band before reading
+				rows.readRows(next, carried, nextY1 - nextY0 - carried);
+				band = next;
+				bandY0 = nextY0;
+				bandY1 = nextY1;
+				found.addAll(pool.invoke(new BandTask(band, bandY0, ty)));
+			}
+		} catch (TileReadException e) {
+			throw e.getCause();
+		} finally {
+			rows.close();
+		}
+		Collections.sort(found, START_ORDER);
+
+		List<PolygonData> out_poly = new ArrayList<PolygonData>(found.size());
+		for (int i = 0; i < found.size(); i++)
+			out_poly.add(found.get(i).poly);
+		return out_poly;
+	}
+
+	/**
+	 * Polygons of the components owned by one tile.
+	 * The tile is cut from its band, which covers the full mask width.
+	 */
+	private List<TracedContour> processTile(BinaryMask band, int bandY0, int tileX, int tileY) throws IOException {
+		int coreX0 = tileX * tileSize;
+		int coreY0 = tileY * tileSize;
+		int coreX1 = Math.min(width, coreX0 + tileSize);
+		int coreY1 = Math.min(height, coreY0 + tileSize);
+
+		int rx0 = Math.max(0, coreX0 - overlap);
+		int ry0 = Math.max(0, coreY0 - overlap);
+		int rx1 = Math.min(width, coreX1 + overlap);
+		int ry1 = Math.min(height, coreY1 + overlap);
+
+		BinaryMask tile = band.copyRegion(rx0, ry0 - bandY0, rx1 - rx0, ry1 - ry0);
+		List<TracedContour> traced = trace(tile, rx0, ry0);
+
+		List<TracedContour> result = new ArrayList<TracedContour>();
+		boolean[] owned = new boolean[traced.size()];
+		for (int i = 0; i < traced.size(); i++) {
+			TracedContour tc = traced.get(i);
+			if (tc.hole)
+				continue;
+			// traced coordinates are in the padded frame, shifted by one pixel
+			int sx = tc.startX - 1;
+			int sy = tc.startY - 1;
+			if (sx < coreX0 || sx >= coreX1 || sy < coreY0 || sy >= coreY1)
+				continue;
+			if (isInside(tc, rx0, ry0, rx1, ry1))
+				owned[i] = true;
+			else
+				traceComponent(tc, band, bandY0, result);
+		}
+		addComponents(traced, owned, result);
+		return result;
+	}
+
+	/**
+	 * Trace a component that crosses the tile edge on regions grown around it,
+	 * until it fits. Nothing is added if the border does not start a component.
+	 * The region is cut from the band, its rows clipped to the band's, while
+	 * the component's rows fit in the band; the file is read only for
+	 * components that reach beyond the band.
+	 */
+	private void traceComponent(TracedContour outer, BinaryMask band, int bandY0,
+			List<TracedContour> result) throws IOException {
+		int bandY1 = bandY0 + band.getHeight();
+		int margin = Math.max(overlap, 1);
+		TracedContour current = outer;
+		ImageReader reader = null;
+		try {
+			while (true) {
+				int rx0 = Math.max(0, current.minX - 1 - margin);
+				int ry0 = Math.max(0, current.minY - 1 - margin);
+				int rx1 = Math.min(width, current.maxX + margin);
+				int ry1 = Math.min(height, current.maxY + margin);
+
+				BinaryMask region;
+				int by0 = Math.max(ry0, bandY0);
+				int by1 = Math.min(ry1, bandY1);
+				if ((by0 == ry0 && by1 == ry1) || isInsideRows(current, by0, by1)) {
+					ry0 = by0;
+					ry1 = by1;
+					region = band.copyRegion(rx0, ry0 - bandY0, rx1 - rx0, ry1 - ry0);
+				} else {
+					if (reader == null)
+						reader = BinaryMask.openReader(inpFile);
+					region = BinaryMask.readRegion(reader, rx0, ry0, rx1 - rx0, ry1 - ry0);
+				}
+				List<TracedContour> traced = trace(region, rx0, ry0);
+				int idx = -1;
+				for (int i = 0; i < traced.size(); i++) {
+					TracedContour tc = traced.get(i);
+					if (!tc.hole && tc.startX == outer.startX && tc.startY == outer.startY) {
+						idx = i;
+						break;
+					}
+				}
+				if (idx < 0) // part of a component that starts elsewhere
+					return;
+
+				current = traced.get(idx);
+				if (isInside(current, rx0, ry0, rx1, ry1)) {
+					boolean[] owned = new boolean[traced.size()];
+					owned[idx] = true;
+					addComponents(traced, owned, result);
+					return;
+				}
+				margin *= 2;
+			}
+		} finally {
+			if (reader != null)
+				BinaryMask.closeReader(reader);
+		}
+	}
+
+	private static void addComponents(List<TracedContour> traced, boolean[] owned, List<TracedContour> result) {
+		for (int i = 0; i < traced.size(); i++) {
+			TracedContour tc = traced.get(i);
+			if (tc.poly != null && owned[tc.component])
+				result.add(tc);
+		}
+	}
+
+	/**
+	 * True if the border and its neighbours lie inside the region,
+	 * or the border only touches region edges that are edges of the mask.
+	 */
+	private boolean isInside(TracedContour tc, int rx0, int ry0, int rx1, int ry1) {
+		int minX = tc.minX - 1, maxX = tc.maxX - 1;
+		return (rx0 == 0 || minX > rx0) && (rx1 == width || maxX < rx1 - 1)
+			&& isInsideRows(tc, ry0, ry1);
+	}
+
+	private boolean isInsideRows(TracedContour tc, int ry0, int ry1) {
+		int minY = tc.minY - 1, maxY = tc.maxY - 1;
+		return (ry0 == 0 || minY > ry0) && (ry1 == height || maxY < ry1 - 1);
+	}
+
+	private List<TracedContour> trace(BinaryMask mask, int offsetX, int offsetY) {
+		ContourTracer tracer = new ContourTracer(epsilon, areaThreshold);
+		tracer.setOffset(offsetX, offsetY);
+		int[] labels = new int[mask.getPixels().length];
+		List<TracedContour> traced = new ArrayList<TracedContour>();
+		tracer.trace(mask, labels, traced, null);
+		return traced;
+	}
+
+	/**
+	 * Traces the tiles of one band in parallel.
+	 */
+	private class BandTask extends RecursiveTask<List<TracedContour>> {
+		private static final long serialVersionUID = 1L;
+		private BinaryMask band;
+		private int bandY0;
+		private int tileY;
+
+		BandTask(BinaryMask band, int bandY0, int tileY) {
+			this.band = band;
+			this.bandY0 = bandY0;
+			this.tileY = tileY;
+		}
+
+		protected List<TracedContour> compute() {
+			List<TileTask> tiles = new ArrayList<TileTask>(tilesX);
+			for (int tx = 0; tx < tilesX; tx++)
+				tiles.add(new TileTask(band, bandY0, tx, tileY));
+			invokeAll(tiles);
+			List<TracedContour> result = new ArrayList<TracedContour>();
+			for (int tx = 0; tx < tilesX; tx++)
+				result.addAll(tiles.get(tx).join());
+			return result;
+		}
+	}
+
+	private class TileTask extends RecursiveTask<List<TracedContour>> {
+		private static final long serialVersionUID = 1L;
+		private BinaryMask band;
+		private int bandY0;
+		private int tileX;
+		private int tileY;
+
+		TileTask(BinaryMask band, int bandY0, int tileX, int tileY) {
+			this.band = band;
+			this.bandY0 = bandY0;
+			this.tileX = tileX;
+			this.tileY = tileY;
+		}
+
+		protected List<TracedContour> compute() {
+			try {
+				return processTile(band, bandY0, tileX, tileY);
+			} catch (IOException e) {
+				throw new TileReadException(e);
+			}
+		}
+	}
+
+	private static class TileReadException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		TileReadException(IOException cause) {
+			super(cause);
+		}
+
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
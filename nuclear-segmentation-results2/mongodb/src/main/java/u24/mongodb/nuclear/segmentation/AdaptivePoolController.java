@@ -0,0 +1,143 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Adjusts the number of parsing (worker) and writer threads while a list is loaded.
+ *
+ * Every interval it looks at the process CPU load, the fill of the write
+ * queue and the mean bulk insert time of the last interval:
+ *  - inserts much slower than the best seen: the database is overloaded,
+ *    remove a writer (or a parser when objects are inserted while parsing);
+ *  - write queue mostly full: the writers are behind, add a writer;
+ *  - write queue mostly empty, CPU to spare and files waiting: add a parser;
+ *  - CPU saturated while batches wait for the writers: remove a parser.
+ * One thread is added or removed per interval.
+ */
+class AdaptivePoolController implements Runnable {
+
+	private static final long   INTERVAL          = 2000;  // milliseconds
+	private static final double CPU_TARGET        = 0.85;  // fraction of all cores
+	private static final double CPU_SATURATED     = 0.98;
+	private static final double QUEUE_HIGH        = 0.75;  // write queue fill
+	private static final double QUEUE_LOW         = 0.25;
+	private static final double LATENCY_OVERLOAD  = 2.0;   // insert time relative to the best seen
+	private static final double BASELINE_DRIFT    = 1.05;  // lets the best seen time follow lasting changes
+
+	private ProcessFileExecutor parsers;
+	private ResultsDatabase segDB;
+	private int maxParsers;
+	private int maxWriters;
+
+	private long lastBatches = 0;
+	private long lastInsertTime = 0;
+	private double baseLatency = -1;
+
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	/**
+	 * segDB may be null; then only the parsers are adjusted, by CPU load.
+	 */
+	AdaptivePoolController(ProcessFileExecutor parsers, ResultsDatabase segDB, int maxParsers, int maxWriters) {
+		this.parsers = parsers;
+		this.segDB = segDB;
+		this.maxParsers = Math.max(maxParsers, 1);
+		this.maxWriters = Math.max(maxWriters, 1);
+	}
+
+	public void start() {
+		running = true;
+		thread = new Thread(this, "pool-controller");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread.join();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			adjust();
+		}
+	}
+
+	void adjust() {
+		double cpu = getCpuLoad();
+		int numParsers = parsers.getThreads();
+		int numWriters = 0;
+		double latency = -1;
+		double queueFill = 0;
+		if (segDB != null) {
+			numWriters = segDB.getWriterCount();
+			long batches = segDB.getBatchCount();
+			long insertTime = segDB.getInsertTime();
+			if (batches > lastBatches)
+				latency = (insertTime - lastInsertTime) / (double) (batches - lastBatches);
+			lastBatches = batches;
+			lastInsertTime = insertTime;
+			if (segDB.getQueueCapacity() > 0)
+				queueFill = segDB.getQueueDepth() / (double) segDB.getQueueCapacity();
+		}
+
+		boolean overloaded = false;
+		if (latency > 0) {
+			overloaded = (baseLatency > 0 && latency > LATENCY_OVERLOAD * baseLatency);
+			baseLatency = (baseLatency > 0) ? Math.min(latency, baseLatency * BASELINE_DRIFT) : latency;
+		}
+		boolean filesWaiting = parsers.getQueuedCount() > 0;
+
+		int newParsers = numParsers;
+		int newWriters = numWriters;
+		if (overloaded) {
+			if (numWriters > 1)
+				newWriters--;
+			else if (numWriters == 0 && numParsers > 1)
+				newParsers--;
+		} else if (numWriters > 0 && queueFill >= QUEUE_HIGH) {
+			if (numWriters < maxWriters)
+				newWriters++;
+		} else if (queueFill <= QUEUE_LOW && cpu >= 0 && cpu < CPU_TARGET && filesWaiting) {
+			if (numParsers < maxParsers)
+				newParsers++;
+		} else if (cpu >= CPU_SATURATED && numParsers > 1 && queueFill >= QUEUE_LOW) {
+			newParsers--;
+		}
+
+		if (newParsers != numParsers || newWriters != numWriters) {
+			parsers.setThreads(newParsers);
+			if (segDB != null)
+				segDB.setWriterCount(newWriters);
+			System.out.println("Threads: parsers " + newParsers + (segDB != null ? " writers " + segDB.getWriterCount() : "")
+					+ " (cpu " + Math.round(cpu * 100) + "%, write queue " + Math.round(queueFill * 100) + "%"
+					+ (latency > 0 ? ", insert " + Math.round(latency / 1e6) + " ms" : "") + ")");
+		}
+	}
+
+	/**
+	 * CPU load of this process as a fraction of all cores, or -1 if not known.
+	 */
+	private static double getCpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+			if (load >= 0)
+				return load;
+		}
+		double loadAverage = os.getSystemLoadAverage();
+		if (loadAverage < 0)
+			return -1;
+		return Math.min(1.0, loadAverage / os.getAvailableProcessors());
+	}
+}
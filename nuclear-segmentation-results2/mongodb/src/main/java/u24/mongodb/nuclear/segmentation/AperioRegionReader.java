@@ -0,0 +1,97 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.opencv.core.Point;
+import u24.masktopoly.PolygonData;
+
+/**
+ * Streaming reader for Aperio XML annotations.
+ * Returns one polygon per Region element as soon as its vertices are read,
+ * so memory use depends on the largest region, not on the file size.
+ */
+public class AperioRegionReader implements Closeable {
+
+    private static final XMLInputFactory XML_FACTORY = createFactory();
+
+    private InputStream in;
+    private XMLStreamReader reader;
+    private PolygonBuffer vertices;
+
+    public AperioRegionReader(String fileName) throws IOException, XMLStreamException {
+        this.in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+        this.reader = XML_FACTORY.createXMLStreamReader(in);
+        this.vertices = new PolygonBuffer();
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * Read up to the next Region and all its Vertex elements.
+     * Returns null at the end of the document.
+     */
+    public PolygonData nextRegion() throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("Region"))
+                continue;
+
+            String area = reader.getAttributeValue(null, "Area");
+            if (area == null)
+                throw new XMLStreamException("No Area attribute.", reader.getLocation());
+
+            vertices.clear();
+            int depth = 1;
+            while (depth > 0) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (reader.getLocalName().equals("Vertex"))
+                        vertices.add(getCoordinate("X"), getCoordinate("Y"));
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+
+            PolygonData polygon = new PolygonData();
+            polygon.area = Double.parseDouble(area);
+            int numPoints = vertices.getNumPoints();
+            double[] coords = vertices.getCoords();
+            polygon.points = new Point[numPoints];
+            for (int i = 0; i < numPoints; i++)
+                polygon.points[i] = new Point(coords[2 * i], coords[2 * i + 1]);
+            return polygon;
+        }
+        return null;
+    }
+
+    private double getCoordinate(String name) throws XMLStreamException {
+        String value = reader.getAttributeValue(null, name);
+        if (value == null)
+            throw new XMLStreamException("No " + name + " attribute in Vertex.", reader.getLocation());
+        return Double.parseDouble(value);
+    }
+
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Reusable little-endian buffer for writing BSON documents element by element.
+ * Documents and arrays are opened with start*() and closed with end(),
+ * which back-patches their lengths.
+ */
+public class BSONBuffer {
+	private static final byte DOUBLE    = 0x01;
+	private static final byte STRING    = 0x02;
+	private static final byte DOCUMENT  = 0x03;
+	private static final byte ARRAY     = 0x04;
+	private static final byte OBJECT_ID = 0x07;
+	private static final byte DATE      = 0x09;
+	private static final byte NULL      = 0x0A;
+
+	private static final String[] INDEX_KEYS = new String[1024];
+	static {
+		for (int i = 0; i < INDEX_KEYS.length; i++)
+			INDEX_KEYS[i] = Integer.toString(i);
+	}
+
+	private byte[] buf;
+	private int pos;
+	private int[] openDocs;
+	private int depth;
+
+	public BSONBuffer() {
+		this(4096);
+	}
+
+	public BSONBuffer(int initialSize) {
+		buf = new byte[initialSize];
+		openDocs = new int[16];
+		reset();
+	}
+
+	public void reset() {
+		pos = 0;
+		depth = 0;
+	}
+
+	public int size() {
+		return pos;
+	}
+
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, pos);
+	}
+
+	/**
+	 * Key of the i-th element of a BSON array.
+	 */
+	public static String indexKey(int i) {
+		return i < INDEX_KEYS.length ? INDEX_KEYS[i] : Integer.toString(i);
+	}
+
+	public void startDocument() {
+		if (depth == openDocs.length)
+			openDocs = Arrays.copyOf(openDocs, depth * 2);
+		openDocs[depth++] = pos;
+		writeInt32(0);
+	}
+
+	public void startDocument(String name) {
+		writeHeader(DOCUMENT, name);
+		startDocument();
+	}
+
+	public void startArray(String name) {
+		writeHeader(ARRAY, name);
+		startDocument();
+	}
+
+	/**
+	 * Close the innermost open document or array.
+	 */
+	public void end() {
+		ensure(1);
+		buf[pos++] = 0;
+		int start = openDocs[--depth];
+		int len = pos - start;
+		buf[start]     = (byte) len;
+		buf[start + 1] = (byte) (len >>> 8);
+		buf[start + 2] = (byte) (len >>> 16);
+		buf[start + 3] = (byte) (len >>> 24);
+	}
+
+	public void writeDouble(String name, double value) {
+		writeHeader(DOUBLE, name);
+		writeInt64(Double.doubleToRawLongBits(value));
+	}
+
+	public void writeString(String name, String value) {
+		if (value == null) {
+			writeNull(name);
+			return;
+		}
+		writeHeader(STRING, name);
+		int lenPos = pos;
+		writeInt32(0);
+		int len = writeCString(value);
+		buf[lenPos]     = (byte) len;
+		buf[lenPos + 1] = (byte) (len >>> 8);
+		buf[lenPos + 2] = (byte) (len >>> 16);
+		buf[lenPos + 3] = (byte) (len >>> 24);
+	}
+
+	public void writeObjectId(String name, ObjectId value) {
+		writeHeader(OBJECT_ID, name);
+		ensure(12);
+		System.arraycopy(value.toByteArray(), 0, buf, pos, 12);
+		pos += 12;
+	}
+
+	public void writeDate(String name, Date value) {
+		writeHeader(DATE, name);
+		writeInt64(value.getTime());
+	}
+
+	public void writeNull(String name) {
+		writeHeader(NULL, name);
+	}
+
+	private void writeHeader(byte type, String name) {
+		ensure(1);
+		buf[pos++] = type;
+		writeCString(name);
+	}
+
+	/**
+	 * Write a null-terminated UTF-8 string and return its length including the terminator.
+	 */
+	private int writeCString(String str) {
+		int start = pos;
+		int len = str.length();
+		ensure(len + 1);
+		boolean ascii = true;
+		for (int i = 0; i < len; i++) {
+			char c = str.charAt(i);
+			if (c >= 0x80 || c == 0) {
+				ascii = false;
+				break;
+			}
+			buf[pos + i] = (byte) c;
+		}
+		if (ascii) {
+			pos += len;
+		} else {
+			byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+			ensure(utf8.length + 1);
+			System.arraycopy(utf8, 0, buf, pos, utf8.length);
+			pos += utf8.length;
+		}
+		buf[pos++] = 0;
+		return pos - start;
+	}
+
+	private void writeInt32(int v) {
+		ensure(4);
+		buf[pos++] = (byte) v;
+		buf[pos++] = (byte) (v >>> 8);
+		buf[pos++] = (byte) (v >>> 16);
+		buf[pos++] = (byte) (v >>> 24);
+	}
+
+	private void writeInt64(long v) {
+		ensure(8);
+		buf[pos++] = (byte) v;
+		buf[pos++] = (byte) (v >>> 8);
+		buf[pos++] = (byte) (v >>> 16);
+		buf[pos++] = (byte) (v >>> 24);
+		buf[pos++] = (byte) (v >>> 32);
+		buf[pos++] = (byte) (v >>> 40);
+		buf[pos++] = (byte) (v >>> 48);
+		buf[pos++] = (byte) (v >>> 56);
+	}
+
+	private void ensure(int n) {
+		if (pos + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+	}
+}
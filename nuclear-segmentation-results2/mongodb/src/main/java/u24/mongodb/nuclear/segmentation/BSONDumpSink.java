@@ -0,0 +1,131 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.bson.BasicBSONEncoder;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Writes the objects and metadata collections as a mongodump directory
+ * that mongorestore can load:
+ *
+ *   outFolder/dbName/objects.bson, objects.metadata.json,
+ *                    metadata.bson, metadata.metadata.json
+ *
+ * With more than one shard every shard is a dump directory of its own
+ * (outFolder/dump-000/dbName/..., outFolder/dump-001/dbName/...), so the
+ * shards can be restored in parallel. The metadata collection is in the
+ * first one. The objects.metadata.json files list the indexes of MongoIndex.
+ */
+public class BSONDumpSink extends ObjectFileSink {
+
+	private static final String OBJECTS  = "objects";
+	private static final String METADATA = "metadata";
+
+	private OutputStream metadataOut;
+	private BasicBSONEncoder metadataEncoder = new BasicBSONEncoder();
+	private Random rand = new Random();
+	private long metadataCount = 0;
+
+	public BSONDumpSink(String outFolder, String dbName, int numShards) throws IOException {
+		super(getObjectsFiles(getDumpFolders(outFolder, dbName, numShards)), false, true);
+		List<String> folders = getDumpFolders(outFolder, dbName, numShards);
+		for (String folder : folders)
+			writeCollectionMetadata(folder + "/" + OBJECTS + ".metadata.json", dbName + "." + OBJECTS,
+					MongoIndex.getObjectsIndexes());
+		writeCollectionMetadata(folders.get(0) + "/" + METADATA + ".metadata.json", dbName + "." + METADATA,
+				new ArrayList<BasicDBObject>());
+		metadataOut = new BufferedOutputStream(new FileOutputStream(folders.get(0) + "/" + METADATA + ".bson"));
+	}
+
+	private static List<String> getDumpFolders(String outFolder, String dbName, int numShards) throws IOException {
+		List<String> folders = new ArrayList<>();
+		numShards = Math.max(numShards, 1);
+		for (int i = 0; i < numShards; i++) {
+			String folder = outFolder + (numShards > 1 ? String.format("/dump-%03d", i) : "") + "/" + dbName;
+			File dir = new File(folder);
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create folder: " + folder);
+			folders.add(folder);
+		}
+		return folders;
+	}
+
+	private static String[] getObjectsFiles(List<String> folders) {
+		String[] files = new String[folders.size()];
+		for (int i = 0; i < files.length; i++)
+			files[i] = folders.get(i) + "/" + OBJECTS + ".bson";
+		return files;
+	}
+
+	/**
+	 * The .metadata.json file mongorestore reads the collection options and indexes from.
+	 */
+	private static void writeCollectionMetadata(String fileName, String ns, List<BasicDBObject> indexKeys)
+			throws IOException {
+		List<BasicDBObject> indexes = new ArrayList<>();
+		indexes.add(getIndexSpec(new BasicDBObject("_id", 1), "_id_", ns));
+		for (BasicDBObject key : indexKeys) {
+			StringBuilder name = new StringBuilder();
+			for (String field : key.keySet()) {
+				if (name.length() > 0)
+					name.append('_');
+				name.append(field).append('_').append(key.get(field));
+			}
+			indexes.add(getIndexSpec(key, name.toString(), ns));
+		}
+		BasicDBObject metadata = new BasicDBObject("options", new BasicDBObject());
+		metadata.append("indexes", indexes);
+
+		Writer writer = new FileWriter(fileName);
+		try {
+			writer.write(JSON.serialize(metadata));
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static BasicDBObject getIndexSpec(BasicDBObject key, String name, String ns) {
+		return new BasicDBObject("v", 1).append("key", key).append("name", name).append("ns", ns);
+	}
+
+	/**
+	 * Append the mapping document to metadata.bson. Mappings are registered
+	 * once per run by ImageExecutionRegistry, so query is not checked.
+	 */
+	public synchronized boolean upsertMetadataDocument(BasicDBObject query, BasicDBObject doc) {
+		doc.append("submit_date", new Date());
+		doc.append("randval", rand.nextFloat());
+		try {
+			metadataOut.write(metadataEncoder.encode(doc));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot write metadata document", e);
+		}
+		metadataCount++;
+		return true;
+	}
+
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			synchronized (this) {
+				metadataOut.close();
+				System.out.println("Metadata documents written: " + metadataCount);
+			}
+		}
+	}
+}
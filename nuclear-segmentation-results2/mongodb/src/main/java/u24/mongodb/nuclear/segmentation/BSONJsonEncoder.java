@@ -0,0 +1,181 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Appends BSON documents to a byte buffer as JSON, one document per line.
+ * Reads the BSON bytes directly, without building DBObjects; ObjectIds and
+ * dates are written as {"$oid":...} and {"$date":...} like the driver's
+ * JSON serializer. Not thread-safe.
+ */
+public class BSONJsonEncoder {
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private byte[] buf;
+	private int pos;
+	private SimpleDateFormat dateFormat;
+
+	public BSONJsonEncoder() {
+		this(1 << 16);
+	}
+
+	public BSONJsonEncoder(int initialSize) {
+		buf = new byte[initialSize];
+		pos = 0;
+		dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	public void reset() {
+		pos = 0;
+	}
+
+	public int size() {
+		return pos;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, pos);
+	}
+
+	/**
+	 * Append the document followed by a newline.
+	 */
+	public void append(byte[] bson) {
+		writeDocument(bson, 0, false);
+		put('\n');
+	}
+
+	private int writeDocument(byte[] b, int p, boolean array) {
+		int end = p + getInt32(b, p) - 1; // position of the terminating 0
+		p += 4;
+		put(array ? '[' : '{');
+		boolean first = true;
+		while (p < end) {
+			byte type = b[p++];
+			int nameStart = p;
+			while (b[p] != 0)
+				p++;
+			int nameEnd = p++;
+			if (!first)
+				put(',');
+			first = false;
+			if (!array) {
+				writeString(b, nameStart, nameEnd);
+				put(':');
+			}
+			switch (type) {
+				case 0x01: // double
+					putDouble(Double.longBitsToDouble(getInt64(b, p)));
+					p += 8;
+					break;
+				case 0x02: // string
+					int len = getInt32(b, p);
+					writeString(b, p + 4, p + 4 + len - 1);
+					p += 4 + len;
+					break;
+				case 0x03: // document
+					p = writeDocument(b, p, false);
+					break;
+				case 0x04: // array
+					p = writeDocument(b, p, true);
+					break;
+				case 0x07: // ObjectId
+					putAscii("{\"$oid\":\"");
+					for (int i = 0; i < 12; i++) {
+						put(HEX[(b[p + i] >> 4) & 0xf]);
+						put(HEX[b[p + i] & 0xf]);
+					}
+					putAscii("\"}");
+					p += 12;
+					break;
+				case 0x08: // boolean
+					putAscii(b[p] != 0 ? "true" : "false");
+					p += 1;
+					break;
+				case 0x09: // UTC datetime
+					putAscii("{\"$date\":\"" + dateFormat.format(new Date(getInt64(b, p))) + "\"}");
+					p += 8;
+					break;
+				case 0x0A: // null
+					putAscii("null");
+					break;
+				case 0x10: // int32
+					putAscii(Integer.toString(getInt32(b, p)));
+					p += 4;
+					break;
+				case 0x12: // int64
+					putAscii(Long.toString(getInt64(b, p)));
+					p += 8;
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported BSON type: " + type);
+			}
+		}
+		put(array ? ']' : '}');
+		return end + 1;
+	}
+
+	/**
+	 * Write the UTF-8 bytes [start, end) as a quoted JSON string.
+	 */
+	private void writeString(byte[] b, int start, int end) {
+		ensure(end - start + 2);
+		buf[pos++] = '"';
+		for (int i = start; i < end; i++) {
+			byte c = b[i];
+			if (c == '"' || c == '\\') {
+				put('\\');
+				put(c);
+			} else if (c >= 0 && c < 0x20) {
+				putAscii("\\u00");
+				put(HEX[(c >> 4) & 0xf]);
+				put(HEX[c & 0xf]);
+			} else {
+				put(c);
+			}
+		}
+		put('"');
+	}
+
+	private void put(int c) {
+		if (pos == buf.length)
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		buf[pos++] = (byte) c;
+	}
+
+	private void putAscii(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++)
+			buf[pos++] = (byte) s.charAt(i);
+	}
+
+	/**
+	 * Points and features are stored as floats widened to double; write those
+	 * as the float, e.g. 0.12345 instead of 0.12345000356435776, as the JSON
+	 * of the Float values did.
+	 */
+	private void putDouble(double d) {
+		float f = (float) d;
+		putAscii((f == d) ? Float.toString(f) : Double.toString(d));
+	}
+
+	private void ensure(int n) {
+		if (pos + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+	}
+
+	private static int getInt32(byte[] b, int p) {
+		return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8) | ((b[p + 2] & 0xff) << 16) | ((b[p + 3] & 0xff) << 24);
+	}
+
+	private static long getInt64(byte[] b, int p) {
+		return (getInt32(b, p) & 0xffffffffL) | ((long) getInt32(b, p + 4) << 32);
+	}
+}
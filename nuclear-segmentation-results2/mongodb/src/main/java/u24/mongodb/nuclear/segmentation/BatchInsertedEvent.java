@@ -0,0 +1,29 @@
+package u24.mongodb.nuclear.segmentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one bulk insert of objects documents (ResultsDatabase).
+ * The duration is the insert latency.
+ */
+@Name("u24.loader.BatchInserted")
+@Label("Batch Inserted")
+@Category({"U24", "Loader"})
+@Description("A batch of objects documents inserted into the objects collection")
+class BatchInsertedEvent extends Event {
+	@Label("Size")
+	int size;
+
+	@Label("Inserted")
+	long inserted;
+
+	@Label("Duplicates")
+	int duplicates;
+
+	@Label("Failures")
+	int failures;
+}
@@ -2,6 +2,8 @@ package u24.mongodb.nuclear.segmentation;
 
 import org.apache.commons.cli.*;
 
+import u24.masktopoly.MaskToPoly;
+
 /**
  * Parses command line arguments.
  * Uses Apache Commons CLI.
@@ -11,45 +13,130 @@ public class CommandLineArguments {
     private static OptionGroup normOptGrp;
     private static CommandLine cmdLine;
 
-    private static String dbServer 	= null;
-    private static int    dbPort 	= 27017;
-    private static String dbHost 	= "localhost";
-    private static String dbName 	= null;
-    private static String dbUser    = null;
-    private static String dbPasswd  = null;
-
-    private static String inpType = null;
+    private static String dbServer;
+    private static int    dbPort;
+    private static String dbHost;
+    private static String dbName;
+    private static String dbUser;
+    private static String dbPasswd;
+    private static int    batchSize;
+    private static long   flushInterval;
+    private static int    imgCacheSize;
+    private static int    dbPoolSize;
+    private static int    dbWaitQueue;
+    private static int    dbMaxWait;
+    private static int    writerThreads;
+    private static int    writeQueue;
+
+    private static String inpType;
+    private static String maskBackend;
+    private static int    tileSize;
+    private static String journalFile;
+    private static boolean doResume;
+    private static boolean stableIds;
+    private static long   splitSize;
+    private static int    numThreads;
+    private static boolean adaptiveThreads;
+    private static int    metricsInterval;
     
-    private static String inpList   = null;
-    private static String imgFile   = null;
-    private static String inpFile   = null;
-    private static String outFolder = null;
-
-    private static String  caseID    = null;
-    private static String  subjectID = null;
+    private static String inpList;
+    private static String imgFile;
+    private static String inpFile;
+    private static String outFolder;
+    private static int     outShards;
+    private static boolean outGzip;
+    private static boolean bsonDump;
+    private static boolean discard;
+
+    private static String  caseID;
+    private static String  subjectID;
     
-    private static boolean doNormalize     = false;
-    private static boolean doSelfNormalize = false;
-    private static boolean getFromDB       = false;
+    private static boolean doNormalize;
+    private static boolean doSelfNormalize;
+    private static boolean getFromDB;
     
-    private static int width 	= 1;
-    private static int height 	= 1;
-    private static int shiftX 	= 0;
-    private static int shiftY 	= 0;
+    private static int width;
+    private static int height;
+    private static int shiftX;
+    private static int shiftY;
     
-    private static String algoID 	= null;
-    private static String studyID 	= null;
-	private static String batchID 	= "b0";
-	private static String tagID 	= "t0";
-    private static String algoType 	= "computer";
-    private static String algoTitle = null;
-    private static String algoColor = "yellow";
-    private static String algoComp 	= "segmentation";
-    private static String nameSpace = "http://u24.bmi.stonybrook.edu/v1";
+    private static String algoID;
+    private static String studyID;
+	private static String batchID;
+	private static String tagID;
+    private static String algoType;
+    private static String algoTitle;
+    private static String algoColor;
+    private static String algoComp;
+    private static String nameSpace;
     
-    private static boolean doSimplify = false; 
-    private static double  minSize    = 0.0;
-    private static double  maxSize    = 40000000000.0; // large number 
+    private static boolean doSimplify;
+    private static double  minSize;
+    private static double  maxSize;
+
+	static {
+		setDefaults();
+	}
+
+	/**
+	 * Set the option values to their defaults, so that each parse starts
+	 * from them when the loader is run more than once in a JVM.
+	 */
+	private static void setDefaults() {
+		dbServer = null;
+		dbPort = 27017;
+		dbHost = "localhost";
+		dbName = null;
+		dbUser = null;
+		dbPasswd = null;
+		batchSize = ResultsDatabase.DEFAULT_BATCH_SIZE;
+		flushInterval = ResultsDatabase.DEFAULT_FLUSH_INTERVAL;
+		imgCacheSize = ImageMetadataCache.DEFAULT_CACHE_SIZE;
+		dbPoolSize = ResultsDatabase.DEFAULT_POOL_SIZE;
+		dbWaitQueue = ResultsDatabase.DEFAULT_WAIT_QUEUE;
+		dbMaxWait = ResultsDatabase.DEFAULT_MAX_WAIT;
+		writerThreads = 0;
+		writeQueue = ResultsDatabase.DEFAULT_WRITE_QUEUE;
+		inpType = null;
+		maskBackend = MaskToPoly.BACKEND_OPENCV;
+		tileSize = 0;
+		journalFile = null;
+		doResume = false;
+		stableIds = false;
+		splitSize = MongoSimpleLoaderThreaded.DEFAULT_SPLIT_SIZE;
+		numThreads = 0;
+		adaptiveThreads = false;
+		metricsInterval = 0;
+		inpList = null;
+		imgFile = null;
+		inpFile = null;
+		outFolder = null;
+		outShards = ObjectFileSink.DEFAULT_SHARDS;
+		outGzip = false;
+		bsonDump = false;
+		discard = false;
+		caseID = null;
+		subjectID = null;
+		doNormalize = false;
+		doSelfNormalize = false;
+		getFromDB = false;
+		width = 1;
+		height = 1;
+		shiftX = 0;
+		shiftY = 0;
+		algoID = null;
+		studyID = null;
+		batchID = "b0";
+		tagID = "t0";
+		algoType = "computer";
+		algoTitle = null;
+		algoColor = "yellow";
+		algoComp = "segmentation";
+		nameSpace = "http://u24.bmi.stonybrook.edu/v1";
+		doSimplify = false;
+		minSize = 0.0;
+		maxSize = 40000000000.0; // large number
+	}
 
 	private static void defineDBOptions() {
 		Option dbport = Option.builder()
@@ -85,11 +172,81 @@ public class CommandLineArguments {
 				.argName("dbpasswd")
 				.build();
 		
+		Option batchsize = Option.builder()
+				.longOpt("batchsize")
+				.desc("Number of objects per bulk insert (default: " + ResultsDatabase.DEFAULT_BATCH_SIZE + ").")
+				.hasArg()
+				.argName("count")
+				.build();
+		
+		Option flushinterval = Option.builder()
+				.longOpt("flushinterval")
+				.desc("Maximum time in milliseconds objects are buffered before insert (default: " 
+						+ ResultsDatabase.DEFAULT_FLUSH_INTERVAL + ").")
+				.hasArg()
+				.argName("msec")
+				.build();
+		
+		Option imgcachesize = Option.builder()
+				.longOpt("imgcachesize")
+				.desc("Maximum number of images whose metadata is cached during a run (default: " 
+						+ ImageMetadataCache.DEFAULT_CACHE_SIZE + ").")
+				.hasArg()
+				.argName("count")
+				.build();
+		
+		Option dbpoolsize = Option.builder()
+				.longOpt("dbpoolsize")
+				.desc("Maximum number of database connections shared by all threads (default: " 
+						+ ResultsDatabase.DEFAULT_POOL_SIZE + ").")
+				.hasArg()
+				.argName("count")
+				.build();
+		
+		Option dbwaitqueue = Option.builder()
+				.longOpt("dbwaitqueue")
+				.desc("Maximum number of threads waiting for a database connection (default: " 
+						+ ResultsDatabase.DEFAULT_WAIT_QUEUE + ").")
+				.hasArg()
+				.argName("count")
+				.build();
+		
+		Option dbmaxwait = Option.builder()
+				.longOpt("dbmaxwait")
+				.desc("Maximum time in milliseconds a thread waits for a database connection (default: " 
+						+ ResultsDatabase.DEFAULT_MAX_WAIT + ").")
+				.hasArg()
+				.argName("msec")
+				.build();
+		
+		Option writerthreads = Option.builder()
+				.longOpt("writerthreads")
+				.desc("Number of threads inserting objects, separate from the parsing threads (default: 0, insert while parsing).")
+				.hasArg()
+				.argName("count")
+				.build();
+		
+		Option writequeue = Option.builder()
+				.longOpt("writequeue")
+				.desc("Maximum number of batches waiting for the writer threads (default: " 
+						+ ResultsDatabase.DEFAULT_WRITE_QUEUE + ").")
+				.hasArg()
+				.argName("count")
+				.build();
+		
 		allOpts.addOption(dbhost);
 		allOpts.addOption(dbport);
 		allOpts.addOption(dbname);
 		allOpts.addOption(dbuser);
 		allOpts.addOption(dbpasswd);
+		allOpts.addOption(batchsize);
+		allOpts.addOption(flushinterval);
+		allOpts.addOption(imgcachesize);
+		allOpts.addOption(dbpoolsize);
+		allOpts.addOption(dbwaitqueue);
+		allOpts.addOption(dbmaxwait);
+		allOpts.addOption(writerthreads);
+		allOpts.addOption(writequeue);
 	}
 
 	/**
@@ -116,13 +273,71 @@ public class CommandLineArguments {
 		Option inpList = Option
 				.builder()
 				.longOpt("inplist")
-				.desc("File containing a list of masks with QUIP filename format or QUIP CSV/TSV files.")
+				.desc("File containing a list of masks with QUIP filename format, QUIP CSV/TSV files or Aperio XML files.")
 				.hasArg()
 				.argName("filename")
 				.build();
 		inpOptGrp.addOption(inpFile);
 		inpOptGrp.addOption(inpList);
 		allOpts.addOptionGroup(inpOptGrp);
+
+		Option maskBackend = Option.builder()
+				.longOpt("maskbackend")
+				.desc("Contour extraction for mask files: opencv (default) or java (no native library needed).")
+				.hasArg()
+				.argName("opencv|java")
+				.build();
+		Option tileSize = Option.builder()
+				.longOpt("tilesize")
+				.desc("Extract polygons from mask files in parallel tiles of this size in pixels (java backend). Default: whole mask in one pass.")
+				.hasArg()
+				.argName("pixels")
+				.build();
+		Option journal = Option.builder()
+				.longOpt("journal")
+				.desc("Record the files loaded to the database in this file, so that the run can be resumed.")
+				.hasArg()
+				.argName("filename")
+				.build();
+		Option resume = Option.builder()
+				.longOpt("resume")
+				.desc("Skip the files the journal lists as loaded and reload the files it lists as unfinished. "
+						+ "Default journal: <inplist>.journal.")
+				.build();
+		allOpts.addOption(maskBackend);
+		allOpts.addOption(tileSize);
+		Option stableids = Option.builder()
+				.longOpt("stableids")
+				.desc("Derive object ids from the execution id, case id and polygon, so that objects "
+						+ "already loaded by an earlier run are skipped instead of duplicated.")
+				.build();
+		Option splitsize = Option.builder()
+				.longOpt("splitsize")
+				.desc("CSV files of an input list larger than this are parsed in parallel parts (default: " 
+						+ (MongoSimpleLoaderThreaded.DEFAULT_SPLIT_SIZE >> 20) + "). 0: do not split.")
+				.hasArg()
+				.argName("MB")
+				.build();
+		Option threads = Option.builder()
+				.longOpt("threads")
+				.desc("Number of files processed in parallel (default: 60% of the cores), or auto to "
+						+ "adjust the parsing and writer threads to the CPU load and database insert times.")
+				.hasArg()
+				.argName("count|auto")
+				.build();
+		Option metrics = Option.builder()
+				.longOpt("metrics")
+				.desc("Print the throughput, queue depths and stage latencies every this many seconds, "
+						+ "and publish them over JMX (u24.loader domain) during the run.")
+				.hasArg()
+				.argName("seconds")
+				.build();
+		allOpts.addOption(threads);
+		allOpts.addOption(metrics);
+		allOpts.addOption(splitsize);
+		allOpts.addOption(journal);
+		allOpts.addOption(resume);
+		allOpts.addOption(stableids);
 	}
 
 	/**
@@ -296,9 +511,10 @@ public class CommandLineArguments {
 		Option dest = Option
 				.builder()
 				.longOpt("dest")
-				.desc("Output: JSON file (works with aperio and maskfile options only) or FeatureDB database.")
+				.desc("Output: JSON files (one object per line), BSON dump for mongorestore (needs --dbname), "
+						+ "FeatureDB database, or none: null parses and encodes the objects without writing them.")
 				.hasArg()
-				.argName("file|db")
+				.argName("file|bson|db|null")
 				.build();
 		Option outFile = Option.builder()
 				.longOpt("outfolder")
@@ -306,8 +522,21 @@ public class CommandLineArguments {
 				.hasArg()
 				.argName("folder")
 				.build();
+		Option outShards = Option.builder()
+				.longOpt("outshards")
+				.desc("Number of output files (or BSON dump folders) written in parallel (default: " 
+						+ ObjectFileSink.DEFAULT_SHARDS + ").")
+				.hasArg()
+				.argName("count")
+				.build();
+		Option outGzip = Option.builder()
+				.longOpt("outgzip")
+				.desc("Gzip compress the output files.")
+				.build();
 		allOpts.addOption(dest);
 		allOpts.addOption(outFile);
+		allOpts.addOption(outShards);
+		allOpts.addOption(outGzip);
 	}
 
 	public static void initCommandLineOptions() {
@@ -343,10 +572,13 @@ public class CommandLineArguments {
 		inpType = cmdLine.getOptionValue("inptype");
 		switch (inpType) {
 		case "aperio":
-			if (cmdLine.hasOption("inpfile")) {
+			if (cmdLine.hasOption("inplist")) {
+				inpList = cmdLine.getOptionValue("inplist");
+			} else if (cmdLine.hasOption("inpfile")) {
 				inpFile = cmdLine.getOptionValue("inpfile");
 			} else {
-				System.err.println("ERROR: aperio option" + "requires --inpfile parameter.");
+				System.err.println("ERROR: aperio option requires --inplist or --inpfile parameter.");
+				return false;
 			}
 			break;
 		case "csv":
@@ -392,6 +624,59 @@ public class CommandLineArguments {
 			System.err.println("ERROR: Unknown value for inptype parameter.");
 			return false;
 		}
+
+		if (cmdLine.hasOption("maskbackend")) {
+			maskBackend = cmdLine.getOptionValue("maskbackend");
+			if (!maskBackend.equals(MaskToPoly.BACKEND_OPENCV) && !maskBackend.equals(MaskToPoly.BACKEND_JAVA)) {
+				System.err.println("ERROR: Unknown value for maskbackend parameter.");
+				return false;
+			}
+		}
+		if (cmdLine.hasOption("tilesize")) {
+			tileSize = Integer.parseInt(cmdLine.getOptionValue("tilesize"));
+			if (tileSize <= 0) {
+				System.err.println("ERROR: tilesize should be larger than 0.");
+				return false;
+			}
+		}
+		if (cmdLine.hasOption("journal"))
+			journalFile = cmdLine.getOptionValue("journal");
+		stableIds = cmdLine.hasOption("stableids");
+		if (cmdLine.hasOption("threads")) {
+			String threads = cmdLine.getOptionValue("threads");
+			if (threads.equals("auto")) {
+				adaptiveThreads = true;
+			} else {
+				numThreads = Integer.parseInt(threads);
+				if (numThreads <= 0) {
+					System.err.println("ERROR: threads should be larger than 0 or auto.");
+					return false;
+				}
+			}
+		}
+		if (cmdLine.hasOption("metrics")) {
+			metricsInterval = Integer.parseInt(cmdLine.getOptionValue("metrics"));
+			if (metricsInterval <= 0) {
+				System.err.println("ERROR: metrics should be larger than 0.");
+				return false;
+			}
+		}
+		if (cmdLine.hasOption("splitsize")) {
+			splitSize = Long.parseLong(cmdLine.getOptionValue("splitsize")) << 20;
+			if (splitSize < 0) {
+				System.err.println("ERROR: splitsize should not be negative.");
+				return false;
+			}
+		}
+		if (cmdLine.hasOption("resume")) {
+			doResume = true;
+			if (journalFile == null && inpList != null)
+				journalFile = inpList + ".journal";
+			if (journalFile == null) {
+				System.err.println("ERROR: resume option requires --journal or --inplist parameter.");
+				return false;
+			}
+		}
 		return true;
 	}
 
@@ -412,6 +697,37 @@ public class CommandLineArguments {
 			dbUser = cmdLine.getOptionValue("dbuser");
 		if (cmdLine.hasOption("dbpasswd"))
 			dbPasswd = cmdLine.getOptionValue("dbpasswd");
+		if (cmdLine.hasOption("batchsize"))
+			batchSize = Integer.parseInt(cmdLine.getOptionValue("batchsize"));
+		if (cmdLine.hasOption("flushinterval"))
+			flushInterval = Long.parseLong(cmdLine.getOptionValue("flushinterval"));
+		if (cmdLine.hasOption("imgcachesize")) {
+			imgCacheSize = Integer.parseInt(cmdLine.getOptionValue("imgcachesize"));
+			if (imgCacheSize <= 0) {
+				System.err.println("ERROR: imgcachesize should be larger than 0.");
+				return false;
+			}
+		}
+		if (cmdLine.hasOption("dbpoolsize")) {
+			dbPoolSize = Integer.parseInt(cmdLine.getOptionValue("dbpoolsize"));
+			if (dbPoolSize <= 0) {
+				System.err.println("ERROR: dbpoolsize should be larger than 0.");
+				return false;
+			}
+		}
+		if (cmdLine.hasOption("dbwaitqueue"))
+			dbWaitQueue = Integer.parseInt(cmdLine.getOptionValue("dbwaitqueue"));
+		if (cmdLine.hasOption("dbmaxwait"))
+			dbMaxWait = Integer.parseInt(cmdLine.getOptionValue("dbmaxwait"));
+		if (cmdLine.hasOption("writerthreads"))
+			writerThreads = Integer.parseInt(cmdLine.getOptionValue("writerthreads"));
+		if (cmdLine.hasOption("writequeue")) {
+			writeQueue = Integer.parseInt(cmdLine.getOptionValue("writequeue"));
+			if (writeQueue <= 0) {
+				System.err.println("ERROR: writequeue should be larger than 0.");
+				return false;
+			}
+		}
 		
 		if (dbUser!=null)
 			dbServer = "mongodb://" + dbUser + ":" + dbPasswd + "@" + dbHost + ":" + dbPort + "/?authSource=" + dbName;
@@ -432,14 +748,33 @@ public class CommandLineArguments {
 		String destVal = cmdLine.getOptionValue("dest");
 		if (destVal.equals("db")) {
 			return parseDatabaseOptions();
-		} else if (destVal.equals("file")) {
+		} else if (destVal.equals("file") || destVal.equals("bson")) {
 			if (!cmdLine.hasOption("outfolder")) {
-				System.err.println("Destination is file, but no foldername given.");
+				System.err.println("Destination is " + destVal + ", but no foldername given.");
 				return false;
 			} else {
 				outFolder = cmdLine.getOptionValue("outfolder");
+				outGzip = cmdLine.hasOption("outgzip");
+				bsonDump = destVal.equals("bson");
+				if (bsonDump) {
+					if (!cmdLine.hasOption("dbname")) {
+						System.err.println("Destination is bson, but no database name given.");
+						return false;
+					}
+					dbName = cmdLine.getOptionValue("dbname");
+				}
+				if (cmdLine.hasOption("outshards")) {
+					outShards = Integer.parseInt(cmdLine.getOptionValue("outshards"));
+					if (outShards <= 0) {
+						System.err.println("ERROR: outshards should be larger than 0.");
+						return false;
+					}
+				}
 				return true;
 			}
+		} else if (destVal.equals("null")) {
+			discard = true;
+			return true;
 		} else {
 			System.err.println("Unknown destination option.");
 			return false;
@@ -535,6 +870,7 @@ public class CommandLineArguments {
 	}
 
 	public static boolean parseCommandLineArgs(String args[]) {
+		setDefaults();
 		CommandLineParser parser = new DefaultParser();
 		try {
 			cmdLine = parser.parse(allOpts, args);
@@ -577,6 +913,38 @@ public class CommandLineArguments {
 	public static String getDBPasswd() {
 		return dbPasswd;
 	}
+	
+	public static int getBatchSize() {
+		return batchSize;
+	}
+	
+	public static long getFlushInterval() {
+		return flushInterval;
+	}
+	
+	public static int getImgCacheSize() {
+		return imgCacheSize;
+	}
+	
+	public static int getDBPoolSize() {
+		return dbPoolSize;
+	}
+	
+	public static int getDBWaitQueue() {
+		return dbWaitQueue;
+	}
+	
+	public static int getDBMaxWait() {
+		return dbMaxWait;
+	}
+	
+	public static int getWriterThreads() {
+		return writerThreads;
+	}
+	
+	public static int getWriteQueue() {
+		return writeQueue;
+	}
 
 	// Getters for input type
 	public static boolean isMaskFile() {
@@ -599,6 +967,48 @@ public class CommandLineArguments {
 		return inpType.equals("aperio");
 	}
 
+	public static String getMaskBackend() {
+		return maskBackend;
+	}
+
+	public static int getTileSize() {
+		return tileSize;
+	}
+
+	public static String getJournalFile() {
+		return journalFile;
+	}
+
+	public static boolean isResume() {
+		return doResume;
+	}
+
+	public static boolean isStableIds() {
+		return stableIds;
+	}
+
+	public static long getSplitSize() {
+		return splitSize;
+	}
+
+	/**
+	 * Number of threads set with --threads, or 0 for the default.
+	 */
+	public static int getNumThreads() {
+		return numThreads;
+	}
+
+	public static boolean isAdaptiveThreads() {
+		return adaptiveThreads;
+	}
+
+	/**
+	 * Seconds between the --metrics lines, or 0 when disabled.
+	 */
+	public static int getMetricsInterval() {
+		return metricsInterval;
+	}
+
 	public static String getInpList() {
 		return inpList;
 	}
@@ -611,6 +1021,22 @@ public class CommandLineArguments {
 		return outFolder;
 	}
 
+	public static int getOutShards() {
+		return outShards;
+	}
+
+	public static boolean isOutGzip() {
+		return outGzip;
+	}
+
+	public static boolean isBSONDump() {
+		return bsonDump;
+	}
+
+	public static boolean isDiscard() {
+		return discard;
+	}
+
 	public static String getCaseID() {
 		return caseID;
 	}
@@ -0,0 +1,49 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Counts the objects documents and drops them (--dest null). The input is
+ * parsed and encoded as for the database, so the loader can be measured
+ * without one. Image to analysis mappings are counted and dropped too.
+ */
+public class DiscardSink implements ObjectsSink {
+
+	private AtomicLong documentCount = new AtomicLong();
+	private AtomicLong byteCount = new AtomicLong();
+	private AtomicLong metadataCount = new AtomicLong();
+
+	public void submitObjectsDocument(byte[] bsonDoc) {
+		documentCount.incrementAndGet();
+		byteCount.addAndGet(bsonDoc.length);
+	}
+
+	public void flushObjects() {
+	}
+
+	public boolean upsertMetadataDocument(BasicDBObject query, BasicDBObject doc) {
+		metadataCount.incrementAndGet();
+		return true;
+	}
+
+	public long getDocumentCount() {
+		return documentCount.get();
+	}
+
+	/**
+	 * Encoded BSON bytes of the objects documents.
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	public long getMetadataCount() {
+		return metadataCount.get();
+	}
+
+	public void close() {
+		System.out.println("Objects discarded: " + documentCount.get() + " (" + byteCount.get() + " bytes)");
+	}
+}
@@ -0,0 +1,8 @@
+package u24.mongodb.nuclear.segmentation;
+
+/**
+ * Told by the loader's worker threads when a file is done.
+ */
+public interface FileListener {
+	void fileDone(ProcessFile file, long elapsedNanos);
+}
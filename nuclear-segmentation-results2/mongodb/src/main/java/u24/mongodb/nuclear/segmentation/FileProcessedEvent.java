@@ -0,0 +1,33 @@
+package u24.mongodb.nuclear.segmentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one input file processed by a worker (ProcessFile.processFile).
+ */
+@Name("u24.loader.FileProcessed")
+@Label("File Processed")
+@Category({"U24", "Loader"})
+@Description("An input file parsed and submitted by a loader worker")
+class FileProcessedEvent extends Event {
+	@Label("Input Type")
+	String inputType;
+
+	@Label("Case Id")
+	String caseId;
+
+	@Label("File")
+	String file;
+
+	@Label("Size")
+	@DataAmount
+	long bytes;
+
+	@Label("Objects")
+	long objects;
+}
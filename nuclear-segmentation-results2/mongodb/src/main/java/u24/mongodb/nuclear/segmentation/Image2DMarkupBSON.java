@@ -0,0 +1,262 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Encodes segmentation results directly to BSON.
+ * Writes the same document as Image2DMarkupGeoJSON followed by
+ * ResultsDatabase.submitObjectsDocument, without the intermediate
+ * BasicDBObject/BasicDBList trees. One instance is reused for all
+ * objects of a file; it is not thread-safe.
+ */
+public class Image2DMarkupBSON {
+
+    private static final String VERSION_NUMBER = "1.3";
+    private static final String TYPE = "type";
+
+    private AnalysisExecutionMetadata execMeta;
+    private SimpleImageMetadata imgMeta;
+    private String nameSpace;
+    private boolean normalized;
+
+    private BSONBuffer buf;
+    private Poinsettia bbox;
+    private Random rand;
+    private ObjectId lastId;
+
+    private String[] featureNames;
+    private double[] featureValues;
+    private int numFeatures;
+    private boolean hasFootprint;
+    private double footprint;
+    private String sourceFile = null;
+    private MessageDigest idDigest = null;
+    private float hashRandval;
+
+    public Image2DMarkupBSON(AnalysisExecutionMetadata execMeta, SimpleImageMetadata imgMeta,
+                             String nameSpace, boolean normalized) {
+        this.execMeta = execMeta;
+        this.imgMeta = imgMeta;
+        this.nameSpace = nameSpace;
+        this.normalized = normalized;
+        this.buf = new BSONBuffer();
+        this.bbox = new Poinsettia();
+        this.rand = new Random();
+        this.featureNames = new String[16];
+        this.featureValues = new double[16];
+        clearFeatures();
+    }
+
+    /**
+     * Input file of the objects, written as provenance.source_file if set.
+     */
+    public void setSourceFile(String sourceFile) {
+        this.sourceFile = sourceFile;
+    }
+
+    /**
+     * Derive _id and randval from a hash of the execution id, case id and
+     * polygon instead of random values, so that loading the same objects
+     * again produces the same documents.
+     */
+    public void setDeterministicIds(boolean deterministic) {
+        if (!deterministic) {
+            idDigest = null;
+            return;
+        }
+        try {
+            idDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start a new object: drop features and footprint of the previous one.
+     */
+    public void clearFeatures() {
+        numFeatures = 0;
+        hasFootprint = false;
+    }
+
+    public void addFeature(String name, double value) {
+        if (numFeatures == featureNames.length) {
+            featureNames = Arrays.copyOf(featureNames, numFeatures * 2);
+            featureValues = Arrays.copyOf(featureValues, numFeatures * 2);
+        }
+        featureNames[numFeatures] = name;
+        featureValues[numFeatures] = value;
+        numFeatures++;
+    }
+
+    /**
+     * Set footprint. Footprint = Area. Required for caMicroscope.
+     */
+    public void setFootprint(double area) {
+        hasFootprint = true;
+        footprint = area;
+    }
+
+    /**
+     * _id of the last encoded document.
+     */
+    public ObjectId getId() {
+        return lastId;
+    }
+
+    /**
+     * Encode one polygon with the current features.
+     * The returned array is a complete BSON document.
+     */
+    public byte[] encode(PolygonBuffer polygon) {
+        writeDocument(polygon);
+        return buf.toByteArray();
+    }
+
+    /**
+     * Encode into the internal buffer, which is valid until the next call.
+     */
+    public BSONBuffer writeDocument(PolygonBuffer polygon) {
+        Date now = new Date();
+        float randval;
+        if (idDigest != null) {
+            hashObject(polygon.getCoords(), polygon.getNumPoints());
+            randval = hashRandval;
+        } else {
+            lastId = new ObjectId();
+            randval = rand.nextFloat();
+        }
+
+        buf.reset();
+        buf.startDocument();
+        buf.writeObjectId("_id", lastId);
+        buf.writeString(TYPE, "Feature");
+        buf.writeString("parent_id", "self");
+        buf.writeDouble("randval", randval);
+        buf.writeDate("creation_date", now);
+        buf.writeString("object_type", "nucleus");
+
+        int numPoints = polygon.getNumPoints();
+        if (numPoints > 0)
+            writeMarkup(polygon.getCoords(), numPoints);
+        if (hasFootprint)
+            buf.writeDouble("footprint", footprint);
+        writeScalarFeatures();
+        writeProvenance();
+
+        buf.writeDate("submit_date", now);
+        buf.end();
+        return buf;
+    }
+
+    /**
+     * Set lastId and hashRandval from the SHA-1 of the execution id, case id
+     * and the points as they are stored (float precision).
+     */
+    private void hashObject(double[] coords, int numPoints) {
+        idDigest.reset();
+        idDigest.update(String.valueOf(execMeta.getIdentifier()).getBytes(StandardCharsets.UTF_8));
+        idDigest.update((byte) 0);
+        idDigest.update(String.valueOf(imgMeta.getCaseid()).getBytes(StandardCharsets.UTF_8));
+        idDigest.update((byte) 0);
+        byte[] pointBytes = new byte[8];
+        for (int j = 0; j < 2 * numPoints; j += 2) {
+            putInt(pointBytes, 0, Float.floatToIntBits((float) coords[j]));
+            putInt(pointBytes, 4, Float.floatToIntBits((float) coords[j + 1]));
+            idDigest.update(pointBytes);
+        }
+        byte[] hash = idDigest.digest();
+        lastId = new ObjectId(Arrays.copyOf(hash, 12));
+        int bits = ((hash[12] & 0xff) << 16) | ((hash[13] & 0xff) << 8) | (hash[14] & 0xff);
+        hashRandval = bits / (float) (1 << 24);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off]     = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private void writeMarkup(double[] coords, int numPoints) {
+        bbox.computeBoundingBox(coords, numPoints);
+        buf.writeDouble("x", bbox.getMin_x());
+        buf.writeDouble("y", bbox.getMin_y());
+        buf.writeString("normalized", Boolean.toString(normalized));
+
+        buf.startArray("bbox");
+        buf.writeDouble("0", bbox.getMin_x());
+        buf.writeDouble("1", bbox.getMin_y());
+        buf.writeDouble("2", bbox.getMax_x());
+        buf.writeDouble("3", bbox.getMax_y());
+        buf.end();
+
+        buf.startDocument("geometry");
+        buf.writeString(TYPE, "Polygon");
+        buf.startArray("coordinates");
+        buf.startArray("0");
+        for (int j = 0; j < numPoints; j++)
+            writePoint(j, coords[2 * j], coords[2 * j + 1]);
+        // Last element in the polygon list should be the same as the first element
+        writePoint(numPoints, coords[0], coords[1]);
+        buf.end();
+        buf.end();
+        buf.end();
+    }
+
+    private void writePoint(int idx, double x, double y) {
+        // points are stored with float precision
+        buf.startArray(BSONBuffer.indexKey(idx));
+        buf.writeDouble("0", (float) x);
+        buf.writeDouble("1", (float) y);
+        buf.end();
+    }
+
+    private void writeScalarFeatures() {
+        buf.startDocument("properties");
+        buf.startArray("scalar_features");
+        buf.startDocument("0");
+        buf.writeString("ns", nameSpace);
+        buf.startArray("nv");
+        int idx = 0;
+        for (int i = 0; i < numFeatures; i++) {
+            if (featureNames[i].equalsIgnoreCase("namespace"))
+                continue;
+            buf.startDocument(BSONBuffer.indexKey(idx++));
+            buf.writeString("name", featureNames[i]);
+            buf.writeDouble("value", featureValues[i]);
+            buf.end();
+        }
+        buf.end();
+        buf.end();
+        buf.end();
+        buf.end();
+    }
+
+    private void writeProvenance() {
+        buf.startDocument("provenance");
+        buf.startDocument("image");
+        buf.writeString("case_id", imgMeta.getCaseid());
+        buf.writeString("subject_id", imgMeta.getSubjectid());
+        buf.end();
+        buf.startDocument("analysis");
+        buf.writeString("execution_id", execMeta.getIdentifier());
+        buf.writeString("study_id", execMeta.getStudyId());
+        buf.writeString("source", execMeta.getSource());
+        buf.writeString("computation", execMeta.getComputation());
+        buf.end();
+        buf.writeString("data_loader", VERSION_NUMBER);
+        buf.writeString("batch_id", execMeta.getBatchId());
+        buf.writeString("tag_id", execMeta.getTagId());
+        if (sourceFile != null)
+            buf.writeString("source_file", sourceFile);
+        buf.end();
+    }
+}
@@ -44,25 +44,43 @@ public class ImageExecutionMapping {
      * Query the 'metadata' collection.
      */
     public boolean checkExists(ResultsDatabase db, String executionIdentifier, String studyId, String imageCaseID) {
-        BasicDBObject imgQuery = new BasicDBObject();
-        imgQuery.put("image.caseid", imageCaseID);
-        imgQuery.put("provenance.analysis_execution_id",
-                executionIdentifier);
-        imgQuery.put("provenance.study_id", studyId);
-        DBCursor cursor = db.submitAnalysisExecutionMappingQuery(imgQuery);
+        DBCursor cursor = db.submitAnalysisExecutionMappingQuery(getQuery(executionIdentifier, studyId, imageCaseID));
 
         return cursor.size() != 0;
     }
     
     public boolean checkExists(ResultsDatabase db) {
-    	BasicDBObject imgQuery = new BasicDBObject();
-        imgQuery.put("image.caseid", caseId);
-        imgQuery.put("provenance.analysis_execution_id",execId);
-        imgQuery.put("provenance.study_id", stdyId);
-        DBCursor cursor = db.submitAnalysisExecutionMappingQuery(imgQuery);
+        DBCursor cursor = db.submitAnalysisExecutionMappingQuery(getQuery());
 
         return cursor.size() != 0;	
     }
+
+    /**
+     * Query matching the metadata document of this mapping.
+     */
+    public BasicDBObject getQuery() {
+        return getQuery(execId, stdyId, caseId);
+    }
+
+    static BasicDBObject getQuery(String executionIdentifier, String studyId, String imageCaseID) {
+        BasicDBObject imgQuery = new BasicDBObject();
+        imgQuery.put("image.caseid", imageCaseID);
+        imgQuery.put("provenance.analysis_execution_id", executionIdentifier);
+        imgQuery.put("provenance.study_id", studyId);
+        return imgQuery;
+    }
+
+    public String getExecId() {
+        return execId;
+    }
+
+    public String getStudyId() {
+        return stdyId;
+    }
+
+    public String getCaseId() {
+        return caseId;
+    }
     
     /**
      * GET metadataDoc.
@@ -92,6 +110,10 @@ public class ImageExecutionMapping {
 
         metadataDoc.put("image", imgmeta_doc);
         metadataDoc.put("provenance", provenance_doc);
+
+        execId = execMeta.getIdentifier();
+        stdyId = execMeta.getStudyId();
+        caseId = imgMeta.getCaseid();
     }
 
 }
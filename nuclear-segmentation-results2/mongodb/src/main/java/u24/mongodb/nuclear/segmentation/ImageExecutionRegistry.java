@@ -0,0 +1,68 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Image to analysis execution mappings registered in the metadata collection,
+ * shared by all worker threads of a run. The mappings of the run's
+ * execution are read with one query at the start; after that a mapping is
+ * written by the first file of its case only.
+ */
+public class ImageExecutionRegistry {
+
+    private final Set<String> registered;
+
+    public ImageExecutionRegistry() {
+        this.registered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Read the case ids already mapped to this execution and study.
+     */
+    public void seed(ResultsDatabase db, String execId, String studyId) {
+        BasicDBObject query = new BasicDBObject();
+        query.put("provenance.analysis_execution_id", execId);
+        query.put("provenance.study_id", studyId);
+        DBCursor cursor = db.submitAnalysisExecutionMappingQuery(query, new BasicDBObject("image.caseid", 1));
+        try {
+            while (cursor.hasNext()) {
+                DBObject image = (DBObject) cursor.next().get("image");
+                if (image != null && image.get("caseid") != null)
+                    registered.add(getKey(image.get("caseid").toString(), execId, studyId));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Write the metadata document of the mapping unless it is already registered.
+     * Returns true if this call registered it.
+     */
+    public boolean register(ObjectsSink db, ImageExecutionMapping imgExecMap) {
+        String key = getKey(imgExecMap.getCaseId(), imgExecMap.getExecId(), imgExecMap.getStudyId());
+        if (!registered.add(key))
+            return false;
+        try {
+            db.upsertMetadataDocument(imgExecMap.getQuery(), imgExecMap.getMetadataDoc());
+        } catch (RuntimeException e) {
+            registered.remove(key); // let a later file try again
+            throw e;
+        }
+        return true;
+    }
+
+    public boolean isRegistered(String caseId, String execId, String studyId) {
+        return registered.contains(getKey(caseId, execId, studyId));
+    }
+
+    private static String getKey(String caseId, String execId, String studyId) {
+        return caseId + '\u0000' + execId + '\u0000' + studyId;
+    }
+}
@@ -0,0 +1,154 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Image metadata from the images collection, keyed by case_id and shared
+ * by all worker threads of a run. Case ids that are not in the collection
+ * are cached too. When the cache is full the least recently used entry is dropped.
+ */
+public class ImageMetadataCache {
+
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private static final String[] FIELDS = {
+        "case_id", "subject_id", "objective", "mpp_x", "mpp_y", "width", "height", "cancer_type"
+    };
+
+    /**
+     * Lookup result for one case_id. The first thread that needs it
+     * queries the database while the others wait on the entry.
+     */
+    private static class Entry {
+        boolean loaded = false;
+        SimpleImageMetadata imgMeta = null;
+    }
+
+    private final Map<String, Entry> entries;
+    private final int maxSize;
+
+    public ImageMetadataCache(int maxSize) {
+        this.maxSize = (maxSize > 0) ? maxSize : 1;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ImageMetadataCache.this.maxSize;
+            }
+        };
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Metadata of the image with this case_id, or null if there is no such image.
+     */
+    public SimpleImageMetadata get(DBCollection images, String caseId) {
+        MetadataLookupEvent event = new MetadataLookupEvent();
+        event.begin();
+        Entry entry = getEntry(caseId);
+        synchronized (entry) {
+            event.hit = entry.loaded;
+            try {
+                if (!entry.loaded) {
+                    DBObject doc = images.findOne(new BasicDBObject("case_id", caseId), projection());
+                    entry.imgMeta = (doc == null) ? null : toMetadata(doc);
+                    entry.loaded = true;
+                }
+            } finally {
+                event.caseId = caseId;
+                event.found = (entry.imgMeta != null);
+                event.commit();
+            }
+            return entry.imgMeta;
+        }
+    }
+
+    /**
+     * Load the metadata of all given case ids with one $in query.
+     * At most getMaxSize() case ids are loaded; the rest are queried when needed.
+     */
+    public void prefetch(DBCollection images, Collection<String> caseIds) {
+        List<String> ids = new ArrayList<String>();
+        for (String caseId : new LinkedHashSet<String>(caseIds)) {
+            if (ids.size() == maxSize)
+                break;
+            ids.add(caseId);
+        }
+        if (ids.isEmpty())
+            return;
+
+        Map<String, SimpleImageMetadata> found = new LinkedHashMap<String, SimpleImageMetadata>();
+        DBCursor cursor = images.find(new BasicDBObject("case_id", new BasicDBObject("$in", ids)), projection());
+        try {
+            while (cursor.hasNext()) {
+                DBObject doc = cursor.next();
+                String caseId = doc.get("case_id").toString();
+                if (found.containsKey(caseId))
+                    continue; // same as findOne: keep the first image
+                try {
+                    found.put(caseId, toMetadata(doc));
+                } catch (RuntimeException e) {
+                    // incomplete document; get() reports it for the files of this case
+                    found.put(caseId, null);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String caseId : ids) {
+            if (found.containsKey(caseId) && found.get(caseId) == null)
+                continue;
+            Entry entry = getEntry(caseId);
+            synchronized (entry) {
+                entry.imgMeta = found.get(caseId);
+                entry.loaded = true;
+            }
+        }
+    }
+
+    private Entry getEntry(String caseId) {
+        synchronized (entries) {
+            Entry entry = entries.get(caseId);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(caseId, entry);
+            }
+            return entry;
+        }
+    }
+
+    private static BasicDBObject projection() {
+        BasicDBObject fields = new BasicDBObject();
+        for (String field : FIELDS)
+            fields.put(field, 1);
+        return fields;
+    }
+
+    private static SimpleImageMetadata toMetadata(DBObject doc) {
+        SimpleImageMetadata imgMeta = new SimpleImageMetadata();
+        imgMeta.setCaseid(doc.get("case_id").toString());
+        if (doc.get("subject_id") != null)
+            imgMeta.setSubjectid(doc.get("subject_id").toString());
+        imgMeta.setObjective(Double.parseDouble(doc.get("objective").toString()));
+        imgMeta.setMpp_x(Double.parseDouble(doc.get("mpp_x").toString()));
+        imgMeta.setMpp_y(Double.parseDouble(doc.get("mpp_y").toString()));
+        imgMeta.setWidth(Double.parseDouble(doc.get("width").toString()));
+        imgMeta.setHeight(Double.parseDouble(doc.get("height").toString()));
+        imgMeta.setCancertype(doc.get("cancer_type").toString());
+        return imgMeta;
+    }
+}
@@ -1,12 +1,34 @@
 package u24.mongodb.nuclear.segmentation;
 
-import java.io.FileWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 public class InputParameters {	
 	    public String dbServer = null;
+	    public int batchSize = ResultsDatabase.DEFAULT_BATCH_SIZE;
+	    public long flushInterval = ResultsDatabase.DEFAULT_FLUSH_INTERVAL;
+	    public int dbPoolSize = ResultsDatabase.DEFAULT_POOL_SIZE;
+	    public int dbWaitQueue = ResultsDatabase.DEFAULT_WAIT_QUEUE;
+	    public int dbMaxWait = ResultsDatabase.DEFAULT_MAX_WAIT;
+	    public int writerThreads = 0;
+	    public int writeQueue = ResultsDatabase.DEFAULT_WRITE_QUEUE;
+	    public ImageMetadataCache imageCache = null;
+	    public ImageExecutionRegistry execMappings = null;
 	    public String inpType = null;
+	    public String maskBackend = null;
+	    public int tileSize = 0;
+	    public int parseThreads = 1;
+	    public long splitSize = MongoSimpleLoaderThreaded.DEFAULT_SPLIT_SIZE;
+	    public Semaphore parseSlots = null; // free worker slots for the split pool
+	    public ExecutorService splitPool = null;
+	    public String journalFile = null;
+	    public boolean resume = false;
+	    public boolean stableIds = false;
+	    public ProgressJournal journal = null;
 	    public String inputList = null;
 	    public String outFolder = null;
+	    public int outShards = ObjectFileSink.DEFAULT_SHARDS;
+	    public boolean outGzip = false;
 	    public String caseID = null;
 	    public String subjectID = null;
 	    public boolean doNormalize = false;
@@ -31,7 +53,8 @@ public class InputParameters {
 	    public String imageFile = null;
 	    public String inputFile = null;
 	    
-	    public FileWriter outFileWriter = null;
+	    public ObjectsSink outSink = null; // set when writing to files instead of the database
+	    public LoaderMetrics metrics = new LoaderMetrics(); // disabled unless --metrics
 	    
-	    InputParameters() { }
+	    public InputParameters() { }
 }
@@ -0,0 +1,286 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the loader stages per input type,
+ * and the depths of the file and write queues (--metrics).
+ *
+ * The stages are: read (a row, or the mask image), parse (polygon and
+ * features; includes simplify), simplify, encode (the BSON document),
+ * submit (to the database batches or the output files) and file (a whole
+ * file on a worker). A thread prints a throughput line every interval,
+ * and the values are published as MXBeans in the u24.loader domain
+ * (jconsole, jmc) while the run is going.
+ *
+ * When disabled the timers do not read the clock and nothing is recorded.
+ */
+public class LoaderMetrics implements LoaderMetricsMXBean, FileListener, Runnable {
+
+	public enum Stage { READ, PARSE, SIMPLIFY, ENCODE, SUBMIT, FILE }
+
+	private static final String DOMAIN = "u24.loader";
+
+	/**
+	 * Records the stages of one input type. Thread-safe.
+	 * Time a sequence of stages with one clock read per stage:
+	 *   long t = timer.start();  ...read...  t = timer.next(Stage.READ, t);  ...parse...  t = timer.next(Stage.PARSE, t);
+	 */
+	public static class StageTimer {
+		private final StageHistogram[] stages;
+
+		StageTimer(StageHistogram[] stages) {
+			this.stages = stages;
+		}
+
+		public long start() {
+			return (stages == null) ? 0 : System.nanoTime();
+		}
+
+		/**
+		 * Record the time since start for stage. Returns the start of the next stage.
+		 */
+		public long next(Stage stage, long start) {
+			if (stages == null)
+				return 0;
+			long now = System.nanoTime();
+			stages[stage.ordinal()].record(now - start);
+			return now;
+		}
+	}
+
+	static final StageTimer DISABLED = new StageTimer(null);
+
+	private int interval; // seconds; 0 is disabled
+	private Map<String, StageTimer> timers = new ConcurrentSkipListMap<>();
+	private Map<String, StageHistogram[]> histograms = new ConcurrentSkipListMap<>();
+	private LongAdder filesDone = new LongAdder();
+	private volatile ProcessFileExecutor parsers = null;
+	private volatile ResultsDatabase segDB = null;
+	private List<ObjectName> mbeans = new ArrayList<>();
+
+	private long startTime;
+	private long lastTime;
+	private long lastObjects;
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	public LoaderMetrics() {
+		this(0);
+	}
+
+	/**
+	 * intervalSeconds: time between the throughput lines; 0 disables the metrics.
+	 */
+	public LoaderMetrics(int intervalSeconds) {
+		this.interval = Math.max(intervalSeconds, 0);
+	}
+
+	public boolean isEnabled() {
+		return interval > 0;
+	}
+
+	/**
+	 * The timer for the stages of an input type, e.g. "csv".
+	 */
+	public StageTimer getTimer(String inputType) {
+		if (!isEnabled())
+			return DISABLED;
+		StageTimer timer = timers.get(inputType);
+		if (timer == null) {
+			synchronized (this) {
+				timer = timers.get(inputType);
+				if (timer == null) {
+					StageHistogram[] stages = new StageHistogram[Stage.values().length];
+					for (Stage stage : Stage.values()) {
+						stages[stage.ordinal()] = new StageHistogram();
+						register(stages[stage.ordinal()], "type=Stage,input=" + inputType
+								+ ",name=" + stage.name().toLowerCase());
+					}
+					histograms.put(inputType, stages);
+					timer = new StageTimer(stages);
+					timers.put(inputType, timer);
+				}
+			}
+		}
+		return timer;
+	}
+
+	static String getInputType(ProcessFile file) {
+		if (file instanceof ProcessCSVFeaturePolygonFile)
+			return "csv";
+		if (file instanceof ProcessTSVQuipFile)
+			return "tsv";
+		if (file instanceof ProcessBinaryMaskFile)
+			return "mask";
+		if (file instanceof ProcessAperioXMLFile)
+			return "aperio";
+		return file.getClass().getSimpleName();
+	}
+
+	public void fileDone(ProcessFile file, long elapsedNanos) {
+		filesDone.increment();
+		if (isEnabled())
+			getTimer(getInputType(file)).next(Stage.FILE, System.nanoTime() - elapsedNanos);
+	}
+
+	/**
+	 * Start printing the throughput lines. segDB may be null.
+	 */
+	public void start(ProcessFileExecutor parsers, ResultsDatabase segDB) {
+		if (!isEnabled())
+			return;
+		this.parsers = parsers;
+		this.segDB = segDB;
+		parsers.addFileListener(this);
+		register(this, "type=Loader");
+		startTime = lastTime = System.nanoTime();
+		lastObjects = 0;
+		running = true;
+		thread = new Thread(this, "loader-metrics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Print the totals and remove the MXBeans. Does nothing if not started.
+	 */
+	public void stop() throws InterruptedException {
+		if (!isEnabled() || thread == null)
+			return;
+		running = false;
+		thread.interrupt();
+		thread.join();
+		thread = null;
+		printReport(true);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : mbeans) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			}
+		}
+		mbeans.clear();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			printReport(false);
+		}
+	}
+
+	private synchronized void register(Object mbean, String properties) {
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+			mbeans.add(name);
+		} catch (JMException e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+
+	private static String formatNanos(double nanos) {
+		if (nanos < 1e6)
+			return String.format("%.1fus", nanos / 1e3);
+		return String.format("%.1fms", nanos / 1e6);
+	}
+
+	/**
+	 * One line of counters and queues, then one line per input type with
+	 * count, p50 and p99 of each stage; with totals, also the time spent.
+	 */
+	private synchronized void printReport(boolean totals) {
+		long now = System.nanoTime();
+		long objects = getObjectsSubmitted();
+		double seconds = totals ? (now - startTime) / 1e9 : (now - lastTime) / 1e9;
+		double rate = (seconds > 0) ? (totals ? objects : objects - lastObjects) / seconds : 0;
+		lastTime = now;
+		lastObjects = objects;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Metrics%s %ds: files %d done, %d queued, %d workers; objects %d, %.0f/s",
+				totals ? " total" : "", Math.round((now - startTime) / 1e9), getFilesDone(), getFileQueueDepth(),
+				getWorkerThreads(), objects, rate));
+		if (segDB != null)
+			sb.append(String.format("; write queue %d/%d, inserted %d, errors %d", getWriteQueueDepth(),
+					getWriteQueueCapacity(), getObjectsInserted(), getInsertErrors()));
+		for (Map.Entry<String, StageHistogram[]> entry : histograms.entrySet()) {
+			sb.append(String.format("%n  %s:", entry.getKey()));
+			String sep = " ";
+			for (Stage stage : Stage.values()) {
+				StageHistogram h = entry.getValue()[stage.ordinal()];
+				long count = h.getCount();
+				if (count == 0)
+					continue;
+				sb.append(sep).append(stage.name().toLowerCase()).append(' ').append(count)
+					.append(" p50 ").append(formatNanos(h.getPercentile(0.50)))
+					.append(" p99 ").append(formatNanos(h.getPercentile(0.99)));
+				if (totals)
+					sb.append(" total ").append(formatNanos(h.getTotalNanos()));
+				sep = ", ";
+			}
+		}
+		System.out.println(sb);
+	}
+
+	public long getFilesDone() {
+		return filesDone.sum();
+	}
+
+	public long getObjectsSubmitted() {
+		long count = 0;
+		for (StageHistogram[] stages : histograms.values())
+			count += stages[Stage.SUBMIT.ordinal()].getCount();
+		return count;
+	}
+
+	public double getObjectsPerSecond() {
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		return (seconds > 0) ? getObjectsSubmitted() / seconds : 0;
+	}
+
+	public int getWorkerThreads() {
+		ProcessFileExecutor p = parsers;
+		return (p == null) ? 0 : p.getThreads();
+	}
+
+	public int getFileQueueDepth() {
+		ProcessFileExecutor p = parsers;
+		return (p == null) ? 0 : p.getQueuedCount();
+	}
+
+	public int getWriteQueueDepth() {
+		ResultsDatabase db = segDB;
+		return (db == null) ? 0 : db.getQueueDepth();
+	}
+
+	public int getWriteQueueCapacity() {
+		ResultsDatabase db = segDB;
+		return (db == null) ? 0 : db.getQueueCapacity();
+	}
+
+	public long getObjectsInserted() {
+		ResultsDatabase db = segDB;
+		return (db == null) ? 0 : db.getInsertedCount();
+	}
+
+	public long getInsertErrors() {
+		ResultsDatabase db = segDB;
+		return (db == null) ? 0 : db.getFailedCount();
+	}
+}
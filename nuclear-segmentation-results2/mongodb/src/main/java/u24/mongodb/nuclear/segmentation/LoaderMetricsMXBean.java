@@ -0,0 +1,24 @@
+package u24.mongodb.nuclear.segmentation;
+
+/**
+ * JMX view of the loader counters and queues, see LoaderMetrics.
+ */
+public interface LoaderMetricsMXBean {
+	long getFilesDone();
+
+	long getObjectsSubmitted();
+
+	double getObjectsPerSecond();
+
+	int getWorkerThreads();
+
+	int getFileQueueDepth();
+
+	int getWriteQueueDepth();
+
+	int getWriteQueueCapacity();
+
+	long getObjectsInserted();
+
+	long getInsertErrors();
+}
@@ -0,0 +1,26 @@
+package u24.mongodb.nuclear.segmentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of one image metadata lookup (ImageMetadataCache.get).
+ * The duration includes waiting for another thread's query of the same case.
+ */
+@Name("u24.loader.MetadataLookup")
+@Label("Metadata Lookup")
+@Category({"U24", "Loader"})
+@Description("Image metadata of a case looked up in the cache or the images collection")
+class MetadataLookupEvent extends Event {
+	@Label("Case Id")
+	String caseId;
+
+	@Label("Cache Hit")
+	boolean hit;
+
+	@Label("Found")
+	boolean found;
+}
@@ -7,6 +7,7 @@ package u24.mongodb.nuclear.segmentation;
 import com.mongodb.*;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -49,16 +50,24 @@ public class MongoIndex {
     }
 
 
-    public static void createIdx() {
+    /**
+     * Keys of the indexes on the objects collection.
+     */
+    public static List<BasicDBObject> getObjectsIndexes() {
         //create index on name field
         //use 1 for ascending index , -1 for descending index
 
         String[] idx = {"x", "y", "randval", "footprint", "scalar_features"};
 
-        for (int i = 0; i < idx.length; i++) {
-            BasicDBObject index = new BasicDBObject(idx[i], 1);
+        List<BasicDBObject> indexes = new ArrayList<>();
+        for (int i = 0; i < idx.length; i++)
+            indexes.add(new BasicDBObject(idx[i], 1));
+        return indexes;
+    }
+
+    public static void createIdx() {
+        for (BasicDBObject index : getObjectsIndexes())
             collection.createIndex(index);
-        }
         System.out.println("Indices created successfully.");
     }
 
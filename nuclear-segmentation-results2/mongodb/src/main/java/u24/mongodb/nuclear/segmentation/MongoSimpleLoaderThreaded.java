@@ -1,50 +1,82 @@
 package u24.mongodb.nuclear.segmentation;
 
 import java.io.File;
-import java.io.FileWriter;
-
-class ProcessFileThread implements Runnable {
-    private Thread myThread;
-    private ProcessFile inpFile;
-
-    public ProcessFileThread(ProcessFile inpFile) {
-        this.myThread = new Thread(this, "myThread");
-        this.inpFile = inpFile;
-        myThread.start();
-    }
-
-    public void run() {
-        inpFile.processFile();
-    }
-
-    public boolean isAlive() {
-        return this.myThread.isAlive();
-    }
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+/**
+ * One line of the input list.
+ */
+class InputEntry {
+	String subjectId;
+	String caseId;
+	String fileName;
+	int shiftX = 0;
+	int shiftY = 0;
+	long size = 0;
 }
 
 public class MongoSimpleLoaderThreaded {
+
+	// Files queued per worker thread before submission blocks
+	private static final int QUEUE_DEPTH_PER_THREAD = 2;
+	
+	// CSV files larger than this are parsed in parts on the split pool
+	public static final long DEFAULT_SPLIT_SIZE = 256L << 20;
 	
-	private static ResultsDatabase[] setupDatabaseConnections(int numThreads, String segdbServer) {
-		ResultsDatabase[] segDB = new ResultsDatabase[numThreads];
-		if (segdbServer!=null) {
-        	for (int i = 0; i < numThreads; i++) 
-            	segDB[i] = new ResultsDatabase(segdbServer);
-		} else {
-        	for (int i = 0; i < numThreads; i++) 
-				segDB[i] = null;
+	// Largest files first, so that no long file starts when the others are done
+	private static final Comparator<InputEntry> LARGEST_FIRST = new Comparator<InputEntry>() {
+		public int compare(InputEntry a, InputEntry b) {
+			return (a.size > b.size) ? -1 : ((a.size == b.size) ? 0 : 1);
 		}
-        return segDB;
+	};
+	
+	/**
+	 * One client and connection pool shared by all worker threads.
+	 */
+	private static ResultsDatabase setupDatabaseConnection(InputParameters inputParams) {
+		if (inputParams.dbServer==null) 
+			return null;
+		ResultsDatabase segDB = new ResultsDatabase(inputParams.dbServer, 
+				ResultsDatabase.getClientOptions(inputParams.dbPoolSize, inputParams.dbWaitQueue, inputParams.dbMaxWait));
+		segDB.setBatchSize(inputParams.batchSize);
+		segDB.setFlushInterval(inputParams.flushInterval);
+		segDB.setWriterThreads(inputParams.writerThreads, inputParams.writeQueue);
+		return segDB;
 	}
 	
-	private static InputParameters setInputParameters() {
+	private static InputParameters setInputParameters(ObjectsSink objectsSink) {
 		InputParameters inputParams = new InputParameters();
     	
     	inputParams.dbServer  	= CommandLineArguments.getDBServer();
+    	inputParams.batchSize	= CommandLineArguments.getBatchSize();
+    	inputParams.flushInterval = CommandLineArguments.getFlushInterval();
+    	inputParams.dbPoolSize  = CommandLineArguments.getDBPoolSize();
+    	inputParams.dbWaitQueue = CommandLineArguments.getDBWaitQueue();
+    	inputParams.dbMaxWait   = CommandLineArguments.getDBMaxWait();
+    	inputParams.writerThreads = CommandLineArguments.getWriterThreads();
+    	inputParams.writeQueue  = CommandLineArguments.getWriteQueue();
+    	inputParams.imageCache  = new ImageMetadataCache(CommandLineArguments.getImgCacheSize());
+    	inputParams.execMappings = new ImageExecutionRegistry();
       
     	inputParams.inputList	= CommandLineArguments.getInpList();
         inputParams.imageFile	= CommandLineArguments.getInpImage();
         inputParams.inputFile   = CommandLineArguments.getInpFile();
         inputParams.outFolder   = CommandLineArguments.getOutFoldername();
+        inputParams.outShards   = CommandLineArguments.getOutShards();
+        inputParams.outGzip     = CommandLineArguments.isOutGzip();
+        inputParams.maskBackend = CommandLineArguments.getMaskBackend();
+        inputParams.tileSize    = CommandLineArguments.getTileSize();
+        inputParams.journalFile = CommandLineArguments.getJournalFile();
+        inputParams.resume      = CommandLineArguments.isResume();
+        inputParams.stableIds   = CommandLineArguments.isStableIds();
+        inputParams.splitSize   = CommandLineArguments.getSplitSize();
       
         inputParams.execTitle 	= CommandLineArguments.getAnalysisTitle();
         inputParams.execID    	= CommandLineArguments.getAnalysisID();
@@ -72,17 +104,28 @@ public class MongoSimpleLoaderThreaded {
         inputParams.maxSize		= CommandLineArguments.getMaxSize();
         
         inputParams.nameSpace 	= CommandLineArguments.getNamespace();
+        inputParams.metrics     = new LoaderMetrics(CommandLineArguments.getMetricsInterval());
         
-        // Handle writing to output file instead of database
-        inputParams.outFileWriter = null;
-        if (inputParams.outFolder!=null) {
-        	if (inputParams.inputFile==null) {
+        // Handle writing to output files instead of database
+        inputParams.outSink = null;
+        if (objectsSink!=null) {
+        	inputParams.outSink = objectsSink;
+        } else if (CommandLineArguments.isDiscard()) {
+        	inputParams.outSink = new DiscardSink();
+        } else if (inputParams.outFolder!=null) {
+        	String inputName = (inputParams.inputFile!=null) ? inputParams.inputFile : inputParams.inputList;
+        	if (inputName==null) {
         		System.err.println("Error: input file name is missing.");
         		return null;
         	} else { 
         		try {
-        			String fileName = (new File(inputParams.inputFile)).getName();
-        			inputParams.outFileWriter = new FileWriter(inputParams.outFolder + "/" + fileName + ".json");
+        			String fileName = (new File(inputName)).getName();
+        			if (CommandLineArguments.isBSONDump()) 
+        				inputParams.outSink = new BSONDumpSink(inputParams.outFolder, CommandLineArguments.getDBName(), 
+        						inputParams.outShards);
+        			else
+        				inputParams.outSink = new ObjectFileSink(inputParams.outFolder, fileName, 
+        						inputParams.outShards, inputParams.outGzip);
         		} catch (Exception e) {
         			System.err.println(e.getClass().getName() + ": " + e.getMessage());
         			return null;
@@ -93,19 +136,88 @@ public class MongoSimpleLoaderThreaded {
         return inputParams;
 	}
 	
-	public static void handleFile(ProcessFile process, int numThreads) {
-		InputParameters inputParams = setInputParameters();
+	/**
+	 * Load the image metadata of all cases in the input list with one query,
+	 * instead of one query per file.
+	 */
+	private static void prefetchImageMetadata(InputParameters inputParams, ResultsDatabase segDB, 
+			List<InputEntry> entries) {
+		Set<String> caseIds = new LinkedHashSet<String>();
+		for (InputEntry entry : entries) 
+			caseIds.add(entry.caseId);
+		System.out.println("Prefetching image metadata for " + caseIds.size() + " cases.");
+		inputParams.imageCache.prefetch(segDB.getImagesCollection(), caseIds);
+	}
+	
+	/**
+	 * Read all lines of the input. Returns null if a line is not valid.
+	 */
+	private static List<InputEntry> readInputEntries(IterateInputData iter) {
+		List<InputEntry> entries = new ArrayList<InputEntry>();
+		while (iter.hasNext()) {
+			String[] currLine = iter.next().split(",");
+			if (currLine.length<3) {
+				System.err.println("Error in input. subjectId or caseId or fileName is missing.");
+				return null;
+			}
+			InputEntry entry = new InputEntry();
+			entry.subjectId = currLine[0];
+			entry.caseId    = currLine[1];
+			entry.fileName  = currLine[2];
+			if (CommandLineArguments.isMaskFile() || CommandLineArguments.isMaskTile()) {
+				if (currLine.length!=5) {
+					System.err.println("Error in input. Binary mask x and y shift values are missing.");
+					return null;
+				}
+				entry.shiftX = Integer.parseInt(currLine[3]);
+				entry.shiftY = Integer.parseInt(currLine[4]);
+			}
+			entries.add(entry);
+		}
+		return entries;
+	}
+	
+	/**
+	 * Order the files largest first (LPT scheduling): the workers start on
+	 * the long files and fill the remaining time with the short ones.
+	 */
+	private static void scheduleLargestFirst(List<InputEntry> entries) {
+		long totalSize = 0;
+		for (InputEntry entry : entries) {
+			entry.size = (new File(entry.fileName)).length(); // 0 if missing; reported by the worker
+			totalSize += entry.size;
+		}
+		Collections.sort(entries, LARGEST_FIRST); // stable: list order for equal sizes
+		System.out.println("Scheduling " + entries.size() + " files, " + (totalSize >> 20) + " MB, largest first.");
+	}
+	
+	/**
+	 * Load the files of one input type. The objects go to sink, if not null,
+	 * instead of the database or the --dest files; listener, if not null,
+	 * is told when each file is done.
+	 */
+	public static void handleFile(ProcessFile process, int numThreads, ObjectsSink sink, FileListener listener) {
+		InputParameters inputParams = setInputParameters(sink);
+		if (inputParams==null) 
+			return;
 
-		if (inputParams.inputList==null || inputParams.outFileWriter!=null) 
-			numThreads = 1;  // if a single file or output to file, use one thread
+		if (inputParams.inputList==null) {
+			numThreads = 1;  // if a single file, use one thread
+			inputParams.parseThreads = Runtime.getRuntime().availableProcessors(); // and split it over all cores
+		}
 		
+		int numCores = Runtime.getRuntime().availableProcessors();
+		boolean adaptive = CommandLineArguments.isAdaptiveThreads() && numThreads > 1;
+		if (adaptive && inputParams.writerThreads < 1) 
+			inputParams.writerThreads = 1; // the controller adds writers as needed
+		
+		ResultsDatabase segDB = null;
+		ProcessFileExecutor procFile = null;
+		AdaptivePoolController controller = null;
 		try {
-			ResultsDatabase[] segDB = setupDatabaseConnections(numThreads,inputParams.dbServer);
-			ProcessFileThread[] procFile = new ProcessFileThread[numThreads];
-
-			AnalysisExecutionMetadata execMeta = new AnalysisExecutionMetadata(inputParams.execID, 
-					inputParams.studyID, inputParams.batchID,  inputParams.tagID, inputParams.execTitle, 
-					inputParams.execType, inputParams.execComp);
+			segDB = setupDatabaseConnection(inputParams);
+			procFile = new ProcessFileExecutor(numThreads, numThreads*QUEUE_DEPTH_PER_THREAD);
+			procFile.addFileListener(listener);
 
 			IterateInputData iter = new IterateInputData();
 			if (inputParams.inputList!=null) 
@@ -121,73 +233,119 @@ public class MongoSimpleLoaderThreaded {
 				System.err.println("Input file or list should be defined.");
 				return;
 			}
+			List<InputEntry> entries = readInputEntries(iter);
+			if (entries==null) 
+				return;
+			if (inputParams.inputList!=null) {
+				scheduleLargestFirst(entries);
+				if (inputParams.splitSize > 0 && numThreads > 1) {
+					inputParams.parseSlots = procFile.getParseSlots();
+					inputParams.splitPool = Executors.newCachedThreadPool();
+				}
+			}
+
+			if (inputParams.inputList!=null && segDB!=null && inputParams.doNormalize 
+					&& inputParams.getFromDB && !inputParams.selfNormalize) 
+				prefetchImageMetadata(inputParams, segDB, entries);
+			if (segDB!=null) 
+				inputParams.execMappings.seed(segDB, inputParams.execID, inputParams.studyID);
+
+			if (inputParams.journalFile!=null) {
+				if (segDB!=null) 
+					inputParams.journal = new ProgressJournal(inputParams.journalFile, inputParams.resume);
+				else
+					System.err.println("Warning: the journal is kept only when loading to the database.");
+			}
+
+			AnalysisExecutionMetadata execMeta = new AnalysisExecutionMetadata(inputParams.execID, 
+					inputParams.studyID, inputParams.batchID,  inputParams.tagID, inputParams.execTitle, 
+					inputParams.execType, inputParams.execComp);
+
+			if (adaptive) {
+				controller = new AdaptivePoolController(procFile, segDB, numCores * 2, numCores);
+				controller.start();
+			}
+			inputParams.metrics.start(procFile, segDB);
 
-			String[] currLine;
-			int thread_id = 0; 
 			int fi = 0;
 			String subjectId, caseId, fileName;
-			int shiftX=0;
-			int shiftY=0;
-			while (iter.hasNext()) {
-				currLine = iter.next().split(",");
-				if (currLine.length<3) {
-					System.err.println("Error in input. subjectId or caseId or fileName is missing.");
-					return;
-				} else {
-					subjectId = currLine[0];
-					caseId    = currLine[1];
-					fileName  = currLine[2];
-				}
-				if (CommandLineArguments.isMaskFile() || CommandLineArguments.isMaskTile()) {
-					if (currLine.length!=5) {
-						System.err.println("Error in input. Binary mask x and y shift values are missing.");
-						return;
-					} else {
-						shiftX = Integer.parseInt(currLine[3]);
-						shiftY = Integer.parseInt(currLine[4]);
+			for (InputEntry entry : entries) {
+				subjectId = entry.subjectId;
+				caseId    = entry.caseId;
+				fileName  = entry.fileName;
+
+				if (inputParams.journal!=null) {
+					if (inputParams.journal.isDone(subjectId, caseId, fileName)) {
+						System.out.println("Skipping[" + fi + "]: " + fileName + " (loaded in a previous run)");
+						fi++;
+						continue;
 					}
+					if (inputParams.journal.isPartial(subjectId, caseId, fileName)) {
+						int removed = segDB.deleteFileObjects(inputParams.execID, caseId, fileName);
+						System.out.println("Removed " + removed + " objects of unfinished file: " + fileName);
+					}
+					inputParams.journal.fileStarted(subjectId, caseId, fileName);
 				}
 
 				System.out.println("Processing[" + fi + "]: " + fileName + " SubjectID: " + subjectId + " CaseID: " + caseId);
 
-				int check_done = 0;
-				while (check_done == 0) {
-					if (procFile[thread_id] == null || !procFile[thread_id].isAlive()) {
-						if (process instanceof ProcessTSVQuipFile) {
-							process = new ProcessTSVQuipFile(fileName, subjectId, caseId, execMeta, inputParams, segDB[thread_id]); 
-						} else if (process instanceof ProcessCSVFeaturePolygonFile) {
-							process = new ProcessCSVFeaturePolygonFile(fileName, subjectId, caseId, execMeta, inputParams, segDB[thread_id]);
-						} else if (process instanceof ProcessBinaryMaskFile) {
-							process = new ProcessBinaryMaskFile(fileName, subjectId, caseId, execMeta, inputParams, 
-									shiftX, shiftY, segDB[thread_id]);
-						}
-						procFile[thread_id] = new ProcessFileThread(process);
-						check_done = 1;
-					}
-					thread_id = (thread_id + 1) % numThreads;
-					Thread.sleep(500);
+				if (process instanceof ProcessTSVQuipFile) {
+					process = new ProcessTSVQuipFile(fileName, subjectId, caseId, execMeta, inputParams, segDB); 
+				} else if (process instanceof ProcessCSVFeaturePolygonFile) {
+					process = new ProcessCSVFeaturePolygonFile(fileName, subjectId, caseId, execMeta, inputParams, segDB);
+				} else if (process instanceof ProcessBinaryMaskFile) {
+					process = new ProcessBinaryMaskFile(fileName, subjectId, caseId, execMeta, inputParams, 
+							entry.shiftX, entry.shiftY, segDB);
 				}
+				procFile.submit(process);
 				fi++;
 			}
-
-			// Finishing Threads
-			loop(procFile,numThreads);
-			
-			if (inputParams.outFileWriter!=null)
-				inputParams.outFileWriter.close();
-			
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		} finally {
+			finishFiles(inputParams, procFile, controller, segDB);
+		}
+	}
+	
+	/**
+	 * Wait for the files submitted so far, then flush and close the outputs.
+	 * Runs also when the input list was not read to the end.
+	 */
+	private static void finishFiles(InputParameters inputParams, ProcessFileExecutor procFile, 
+			AdaptivePoolController controller, ResultsDatabase segDB) {
+		try {
+			try {
+				// Finishing Threads
+				System.out.println("Finishing threads.");
+				if (controller!=null) 
+					controller.stop();
+				if (procFile!=null) 
+					procFile.finish();
+			} finally {
+				if (inputParams.splitPool!=null) 
+					inputParams.splitPool.shutdown();
+				if (segDB!=null) 
+					segDB.close();
+				if (inputParams.journal!=null) 
+					inputParams.journal.close();
+				
+				if (inputParams.outSink!=null)
+					inputParams.outSink.close();
+				inputParams.metrics.stop();
+			}
 		} catch (Exception e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
 		}
 	}
     
-	public static void handleAperioXMLFile(int numThreads) {
+	public static void handleAperioXMLFile(int numThreads, FileListener listener) {
 		String outFolder = CommandLineArguments.getOutFoldername();
 		if (outFolder == null) outFolder = "./";
 
+		String inpList = CommandLineArguments.getInpList();
 		String inpFile = CommandLineArguments.getInpFile();
-		if (inpFile == null) {
-			System.err.println("Need an input file.");
+		if (inpFile == null && inpList == null) {
+			System.err.println("Need an input file or list.");
 			return;
 		}
 
@@ -214,75 +372,81 @@ public class MongoSimpleLoaderThreaded {
         String batchId  = CommandLineArguments.getBatchID();
         String tagId  = CommandLineArguments.getTagID();
 
-		numThreads = 1;
+		if (inpList == null)
+			numThreads = 1;  // a single file
+		ProcessFileExecutor procFile = new ProcessFileExecutor(numThreads, numThreads*QUEUE_DEPTH_PER_THREAD);
+		procFile.addFileListener(listener);
+		LoaderMetrics metrics = new LoaderMetrics(CommandLineArguments.getMetricsInterval());
 		try {
-			ProcessFileThread[] procFile = new ProcessFileThread[numThreads];
+			metrics.start(procFile, null);
 			AnalysisExecutionMetadata executionMetadata = new AnalysisExecutionMetadata(
 					execId, studyId, batchId, tagId, execName, execType, computation);
 
-			int thread_id = 0;
-			int fi = 0;
-			System.out.println("Processing [" + fi + "]: " + inpFile);
-			String fileName = (new File(inpFile)).getName();
-			FileWriter outFileWriter = new FileWriter(outFolder + "/" + fileName
-					+ ".json");
-
-			int check_done = 0;
-			while (check_done == 0) {
-				if (procFile[thread_id] == null
-						|| !procFile[thread_id].isAlive()) {
-					ProcessAperioXMLFile aperioXMLFile;
-					aperioXMLFile = new ProcessAperioXMLFile(inpFile,
-							executionMetadata, img_width, img_height, shiftX,
-							shiftY, normalize, caseID, outFileWriter);
-
-					aperioXMLFile.setColor(colorVal);
-					aperioXMLFile.setCaseID(caseID);
-					aperioXMLFile.setSubjectID(caseID);
+			IterateInputData iter = new IterateInputData();
+			if (inpList != null)
+				iter.setFileList(inpList);
+			else
+				iter.setSingleFile(caseID, caseID, inpFile);
 
-					procFile[thread_id] = new ProcessFileThread(aperioXMLFile);
-					check_done = 1;
+			int fi = 0;
+			Set<String> outFiles = new HashSet<>();
+			while (iter.hasNext()) {
+				String[] currLine = iter.next().split(",");
+				if (currLine.length<3) {
+					System.err.println("Error in input. subjectId or caseId or fileName is missing.");
+					break;
 				}
+				String subjectId = currLine[0];
+				String fileCaseId = currLine[1];
+				String xmlFile = currLine[2];
+
+				System.out.println("Processing [" + fi + "]: " + xmlFile);
+				// files run in parallel: the output name is unique in the run
+				String outName = fileCaseId + "-" + (new File(xmlFile)).getName();
+				if (!outFiles.add(outName)) 
+					outName = outName + "-" + fi;
+				String outFileName = outFolder + "/" + outName + ".json";
+
+				ProcessAperioXMLFile aperioXMLFile;
+				aperioXMLFile = new ProcessAperioXMLFile(xmlFile,
+						executionMetadata, img_width, img_height, shiftX,
+						shiftY, normalize, fileCaseId, outFileName);
+
+				aperioXMLFile.setColor(colorVal);
+				aperioXMLFile.setCaseID(fileCaseId);
+				aperioXMLFile.setSubjectID(subjectId);
+				aperioXMLFile.setTimer(metrics.getTimer("aperio"));
+
+				procFile.submit(aperioXMLFile);
+				fi++;
 			}
-
-			// Finishing Threads
-			loop(procFile,numThreads);
 		} catch (Exception e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		} finally {
+			try {
+				// Finishing Threads
+				System.out.println("Finishing threads.");
+				try {
+					procFile.finish();
+				} finally {
+					metrics.stop();
+				}
+			} catch (InterruptedException e) {
+				System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			}
 		}
 	}
 
-    public static void loop(ProcessFileThread[] procFile, int numThreads) {
-        System.out.println("Finishing threads.");
-
-        int[] check_thread = new int[numThreads];
-
-        for (int i = 0; i < numThreads; i++)
-            check_thread[i] = 0;
-
-        int all_done = 0;
-        int thread_id = 0;
-
-        while (all_done < numThreads) {
-            if (procFile[thread_id] == null && check_thread[thread_id] == 0) {
-                check_thread[thread_id] = 1;
-                all_done++;
-            }
-            if (procFile[thread_id] != null && check_thread[thread_id] == 0
-                    && !procFile[thread_id].isAlive()) {
-                check_thread[thread_id] = 1;
-                all_done++;
-            }
-            thread_id = (thread_id + 1) % numThreads;
-            try {
-                Thread.sleep(500);
-            } catch (java.lang.InterruptedException insomnia) {
-                insomnia.printStackTrace();
-            }
-        }
+    public static void main(String args[]) {
+    	run(args, null, null);
     }
 
-    public static void main(String args[]) {
+    /**
+     * Run the loader with the command line args in this JVM, as main does.
+     * Benchmarks and tests pass a sink for the objects and a listener for
+     * the finished files; either may be null.
+     */
+    public static void run(String args[], ObjectsSink sink, FileListener listener) {
 
     	CommandLineArguments.initCommandLineOptions();
     	System.out.println("Parsing the command line arguments\n");
@@ -293,17 +457,19 @@ public class MongoSimpleLoaderThreaded {
 
     	int numCores   = Runtime.getRuntime().availableProcessors();
     	int numThreads = (numCores * 6)/10;
+    	if (CommandLineArguments.getNumThreads() > 0)
+    		numThreads = CommandLineArguments.getNumThreads();
     	if (numThreads==0) numThreads = 1;
 
     	try {
     		if (CommandLineArguments.isTSV()) {
-    			handleFile(new ProcessTSVQuipFile(),numThreads);
+    			handleFile(new ProcessTSVQuipFile(),numThreads,sink,listener);
     		} else if (CommandLineArguments.isCSV()) {
-    			handleFile(new ProcessCSVFeaturePolygonFile(),numThreads);
+    			handleFile(new ProcessCSVFeaturePolygonFile(),numThreads,sink,listener);
     		} else if (CommandLineArguments.isMaskFile()) {
-    			handleFile(new ProcessBinaryMaskFile(),numThreads);
+    			handleFile(new ProcessBinaryMaskFile(),numThreads,sink,listener);
     		} else if (CommandLineArguments.isAperio()) {
-    			handleAperioXMLFile(numThreads);
+    			handleAperioXMLFile(numThreads,listener);
     		} else {
     			System.err.println("Unknown input type.");
     		}
@@ -0,0 +1,188 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Writes objects documents to newline-delimited JSON files, optionally
+ * gzip compressed. Each thread encodes into its own buffer and appends
+ * whole chunks to one of the shard files, so threads do not wait on each
+ * other per document. With more than one shard the files are named
+ * base-000.json, base-001.json, ...
+ */
+public class ObjectFileSink implements ObjectsSink {
+
+	public static final int DEFAULT_SHARDS = 1;
+
+	private static final int FILE_BUFFER  = 1 << 20;
+	private static final int CHUNK_SIZE   = 1 << 18; // encoded bytes per thread before a write
+
+	private static class Shard {
+		final String fileName;
+		final OutputStream out;
+
+		Shard(String fileName, boolean gzip) throws IOException {
+			this.fileName = fileName;
+			OutputStream file = new FileOutputStream(fileName);
+			this.out = gzip ? new BufferedOutputStream(new GZIPOutputStream(file, 1 << 16), FILE_BUFFER)
+					: new BufferedOutputStream(file, FILE_BUFFER);
+		}
+	}
+
+	/**
+	 * Per thread: the encoded documents not yet written and the shard they go to.
+	 * Documents are kept as JSON lines, or as they are with rawBSON.
+	 */
+	private class ThreadBuffer {
+		final BSONJsonEncoder json = rawBSON ? null : new BSONJsonEncoder(CHUNK_SIZE + (1 << 14));
+		final ByteArrayOutputStream bson = rawBSON ? new ByteArrayOutputStream(CHUNK_SIZE + (1 << 14)) : null;
+		final Shard shard = shards[nextShard.getAndIncrement() % shards.length];
+		long count = 0;
+
+		void append(byte[] bsonDoc) {
+			if (rawBSON)
+				bson.write(bsonDoc, 0, bsonDoc.length);
+			else
+				json.append(bsonDoc);
+			count++;
+		}
+
+		int size() {
+			return rawBSON ? bson.size() : json.size();
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			if (rawBSON)
+				bson.writeTo(out);
+			else
+				json.writeTo(out);
+		}
+
+		void reset() {
+			if (rawBSON)
+				bson.reset();
+			else
+				json.reset();
+			count = 0;
+		}
+	}
+
+	private boolean rawBSON;
+	private Shard[] shards;
+	private AtomicInteger nextShard = new AtomicInteger();
+	private AtomicLong writtenCount = new AtomicLong();
+	private Set<ThreadBuffer> allBuffers = Collections.newSetFromMap(new ConcurrentHashMap<ThreadBuffer, Boolean>());
+	private ThreadLocal<ThreadBuffer> threadBuffer = new ThreadLocal<ThreadBuffer>() {
+		protected ThreadBuffer initialValue() {
+			ThreadBuffer tb = new ThreadBuffer();
+			allBuffers.add(tb);
+			return tb;
+		}
+	};
+
+	/**
+	 * Create the output files outFolder/baseName.json (.json.gz with gzip).
+	 */
+	public ObjectFileSink(String outFolder, String baseName, int numShards, boolean gzip) throws IOException {
+		this(getShardNames(outFolder + "/" + baseName, gzip ? ".json.gz" : ".json", numShards), gzip, false);
+	}
+
+	/**
+	 * One shard per file name. With rawBSON the documents are written as
+	 * BSON, one after the other, instead of JSON lines.
+	 */
+	protected ObjectFileSink(String[] fileNames, boolean gzip, boolean rawBSON) throws IOException {
+		this.rawBSON = rawBSON;
+		shards = new Shard[fileNames.length];
+		for (int i = 0; i < fileNames.length; i++)
+			shards[i] = new Shard(fileNames[i], gzip);
+	}
+
+	private static String[] getShardNames(String base, String ext, int numShards) {
+		String[] names = new String[Math.max(numShards, 1)];
+		for (int i = 0; i < names.length; i++)
+			names[i] = base + (names.length > 1 ? String.format("-%03d", i) : "") + ext;
+		return names;
+	}
+
+	public void submitObjectsDocument(byte[] bsonDoc) {
+		ThreadBuffer tb = threadBuffer.get();
+		tb.append(bsonDoc);
+		if (tb.size() >= CHUNK_SIZE)
+			writeChunk(tb);
+	}
+
+	public void flushObjects() {
+		writeChunk(threadBuffer.get());
+	}
+
+	private void writeChunk(ThreadBuffer tb) {
+		if (tb.size() == 0)
+			return;
+		try {
+			synchronized (tb.shard) {
+				tb.writeTo(tb.shard.out);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot write to " + tb.shard.fileName, e);
+		}
+		writtenCount.addAndGet(tb.count);
+		tb.reset();
+	}
+
+	/**
+	 * The JSON output has no metadata collection; image to analysis
+	 * mappings are not written.
+	 */
+	public boolean upsertMetadataDocument(BasicDBObject query, BasicDBObject doc) {
+		return false;
+	}
+
+	/**
+	 * Number of documents written to the files so far.
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * Write the documents buffered by all threads and close the files.
+	 * Call after the threads submitting documents have finished.
+	 */
+	public void close() throws IOException {
+		IOException error = null;
+		for (ThreadBuffer tb : allBuffers) {
+			synchronized (tb) {
+				try {
+					writeChunk(tb);
+				} catch (UncheckedIOException e) {
+					error = e.getCause();
+				}
+			}
+		}
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				try {
+					shard.out.close();
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+		}
+		System.out.println("Objects written to files: " + writtenCount.get());
+		if (error != null)
+			throw error;
+	}
+}
@@ -0,0 +1,33 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.IOException;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Destination of the encoded objects documents: the database or output files.
+ */
+public interface ObjectsSink {
+
+	/**
+	 * Queue a complete BSON objects document, e.g. from Image2DMarkupBSON.
+	 */
+	void submitObjectsDocument(byte[] bsonDoc);
+
+	/**
+	 * Write the documents queued by the calling thread.
+	 */
+	void flushObjects();
+
+	/**
+	 * Write an image to analysis execution mapping to the metadata collection,
+	 * unless a document matching query is there. Returns true if it was written.
+	 */
+	boolean upsertMetadataDocument(BasicDBObject query, BasicDBObject doc);
+
+	/**
+	 * Write what is left and release the destination.
+	 * Call after the threads submitting documents have finished.
+	 */
+	void close() throws IOException;
+}
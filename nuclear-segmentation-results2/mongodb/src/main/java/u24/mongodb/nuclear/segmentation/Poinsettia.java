@@ -97,6 +97,28 @@ public class Poinsettia {
     }
 
 
+    public void computeBoundingBox(double[] coords, int numPoints) {
+        min_x = coords[0];
+        min_y = coords[1];
+        max_x = min_x;
+        max_y = min_y;
+
+        for (int i = 0; i < 2 * numPoints; i += 2) {
+            double temp_x = coords[i];
+            double temp_y = coords[i + 1];
+            if (min_x > temp_x)
+                min_x = temp_x;
+            if (min_y > temp_y)
+                min_y = temp_y;
+            if (max_x < temp_x)
+                max_x = temp_x;
+            if (max_y < temp_y)
+                max_y = temp_y;
+        }
+
+    }
+
+
     public BasicDBList getPolygonPoints(Point[] points)
     {
         BasicDBList objPointsList = new BasicDBList();
@@ -0,0 +1,51 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.util.Arrays;
+
+import org.opencv.core.Point;
+
+/**
+ * Reusable buffer of polygon vertices stored as x0,y0,x1,y1,...
+ * The polygon is open: the first vertex is not repeated at the end.
+ */
+public class PolygonBuffer {
+	private double[] coords;
+	private int size;
+
+	public PolygonBuffer() {
+		this(256);
+	}
+
+	public PolygonBuffer(int initialPoints) {
+		coords = new double[initialPoints * 2];
+		size = 0;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public void add(double x, double y) {
+		if (size + 2 > coords.length)
+			coords = Arrays.copyOf(coords, coords.length * 2);
+		coords[size++] = x;
+		coords[size++] = y;
+	}
+
+	public void set(Point[] points) {
+		clear();
+		for (int i = 0; i < points.length; i++)
+			add(points[i].x, points[i].y);
+	}
+
+	/**
+	 * Coordinates x0,y0,x1,y1,... Only the first 2*getNumPoints() values are valid.
+	 */
+	public double[] getCoords() {
+		return coords;
+	}
+
+	public int getNumPoints() {
+		return size / 2;
+	}
+}
@@ -6,19 +6,14 @@ import com.mongodb.DBObject;
 import org.opencv.core.Point;
 import u24.masktopoly.PolygonData;
 
-import java.io.File;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.util.HashMap;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.Element;
-
 public class ProcessAperioXMLFile implements ProcessFile {
 
+    private static final String NAMESPACE = "http://u24.bmi.stonybrook.edu/v1";
+
     private String fileName;
     private AnalysisExecutionMetadata executionMetadata;
     private String colorVal;
@@ -30,9 +25,10 @@ public class ProcessAperioXMLFile implements ProcessFile {
     private boolean getFromDB;
     private boolean normalize;
     private ResultsDatabase outDB;
-    private FileWriter outFileWriter;
-    private BufferedWriter bufferedWriter;
+    private String outFileName; // opened and closed by processFile
     private ImageExecutionMapping imgExecMap;
+    private LoaderMetrics.StageTimer timer = LoaderMetrics.DISABLED;
+    private long numObjects = 0;
 
     SimpleImageMetadata imgMeta;
     private double min_x, min_y, max_x, max_y;
@@ -55,8 +51,7 @@ public class ProcessAperioXMLFile implements ProcessFile {
         this.caseID = caseID;
         this.subjectID = caseID;
         this.outDB = outDB;
-        this.outFileWriter = null;
-        this.bufferedWriter = null;
+        this.outFileName = null;
 
         this.inpDB = null;
         this.getFromDB = false;
@@ -70,7 +65,7 @@ public class ProcessAperioXMLFile implements ProcessFile {
                            int shift_x, int shift_y,
                            boolean normalize,
                            String caseID,
-                           FileWriter outFileWriter) {
+                           String outFileName) {
         this.fileName = fileName;
         this.executionMetadata = executionMetadata;
         this.colorVal = "yellow";
@@ -82,8 +77,7 @@ public class ProcessAperioXMLFile implements ProcessFile {
         this.caseID = caseID;
         this.subjectID = caseID;
         this.outDB = null;
-        this.outFileWriter = outFileWriter;
-        this.bufferedWriter = new BufferedWriter(outFileWriter);
+        this.outFileName = outFileName;
 
         this.inpDB = null;
         this.getFromDB = false;
@@ -91,6 +85,18 @@ public class ProcessAperioXMLFile implements ProcessFile {
         this.imgMeta = new SimpleImageMetadata();
     }
 
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getCaseId() {
+        return caseID;
+    }
+
+    public long getObjectCount() {
+        return numObjects;
+    }
+
     public void setCaseID(String caseID) {
         this.caseID = caseID;
     }
@@ -103,6 +109,10 @@ public class ProcessAperioXMLFile implements ProcessFile {
         this.colorVal = colorVal;
     }
 
+    public void setTimer(LoaderMetrics.StageTimer timer) {
+        this.timer = timer;
+    }
+
     public void setImgMetaFromDB(ResultsDatabase inpDB) {
         this.getFromDB = true;
         this.inpDB = inpDB;
@@ -132,9 +142,14 @@ public class ProcessAperioXMLFile implements ProcessFile {
     boolean setImageMetadata() {
         if (getFromDB) {
             // Query and retrieve image metadata values
+            MetadataLookupEvent event = new MetadataLookupEvent();
+            event.begin();
             BasicDBObject imgQuery = new BasicDBObject();
             imgQuery.put("case_id", caseID);
             DBObject qryResult = inpDB.getImagesCollection().findOne(imgQuery);
+            event.caseId = caseID;
+            event.found = (qryResult != null);
+            event.commit();
             if (qryResult == null) {
                 System.err.println("ERROR: Cannot find case_id: " + caseID);
                 return false;
@@ -166,26 +181,44 @@ public class ProcessAperioXMLFile implements ProcessFile {
         return true;
     }
     
-    PolygonData parseRegion(Element nNode) {
-    	PolygonData polygon = new PolygonData();
-		if (nNode.getAttribute("Area")==null) {
-			System.err.println("No Area attribute.");
-			return null;
-		} 
-    	polygon.area = Double.parseDouble(nNode.getAttribute("Area"));
-		NodeList pList = nNode.getElementsByTagName("Vertex");
-		polygon.points = new Point[pList.getLength()];
-		for (int i=0;i<pList.getLength();i++) {
-			Element el = (Element) pList.item(i);
-		
-			polygon.points[i] = new Point();	
-			polygon.points[i].x = Double.parseDouble(el.getAttribute("X"));
-			polygon.points[i].y = Double.parseDouble(el.getAttribute("Y"));
-			
-		}
-		return polygon;
+    BasicDBObject getGeoJSONDocument(PolygonData polygon) {
+        Point[] points = polygon.points;
+        Poinsettia pointSetter = new Poinsettia();
+        pointSetter.computeBoundingBox(points);
+        min_x = pointSetter.getMin_x();
+        min_y = pointSetter.getMin_y();
+        max_x = pointSetter.getMax_x();
+        max_y = pointSetter.getMax_y();
+
+        Image2DMarkupGeoJSON obj_2d = new Image2DMarkupGeoJSON();
+
+        BasicDBList objPointsList = pointSetter.getPolygonPoints(points);
+
+        // Check markup data
+        if (objPointsList.size() > 0) {
+            // Set markup data
+            obj_2d.setMarkup(min_x,
+                    min_y, max_x, max_y, "Polygon", normalize,
+                    objPointsList);
+        }
+
+        // Set footprint
+        obj_2d.setFootprint(polygon.area); 
+
+        // Set quantitative features
+        HashMap<String, Object> features = new HashMap<>();
+        features.put("Area", polygon.area);
+        HashMap<String, HashMap<String, Object>> ns_features = new HashMap<>();
+        // add namespace
+        ns_features.put(NAMESPACE, features);
+        obj_2d.setScalarFeatures(ns_features);
+
+        // Set provenance data
+        obj_2d.setProvenance(executionMetadata, imgMeta);
+
+        return obj_2d.getMetadataDoc();
     }
-    
+
     /**
      *
      */
@@ -195,67 +228,50 @@ public class ProcessAperioXMLFile implements ProcessFile {
                 return;
             }
 
-            File fXmlFile = new File(fileName);
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-			Document doc = dBuilder.parse(fXmlFile);
-			doc.getDocumentElement().normalize();
-			
-			NodeList nList = doc.getElementsByTagName("Region");
-			for (int i=0;i<nList.getLength();i++) {
-				Element nNode = (Element) nList.item(i);
-				
-				PolygonData polygon = parseRegion(nNode);
-				if (polygon==null) return;
-				Point[] points = polygon.points;
-				shiftPoints(points);
-				if (normalize)
-					normalizePoints(points);
-				
-                Poinsettia pointSetter = new Poinsettia();
-                pointSetter.computeBoundingBox(points);
-                min_x = pointSetter.getMin_x();
-                min_y = pointSetter.getMin_y();
-                max_x = pointSetter.getMax_x();
-                max_y = pointSetter.getMax_y();
-
-                Image2DMarkupGeoJSON obj_2d = new Image2DMarkupGeoJSON();
-
-                BasicDBList objPointsList = pointSetter.getPolygonPoints(points);
-
-                // Check markup data
-                if (objPointsList.size() > 0) {
-                    // Set markup data
-                    obj_2d.setMarkup(min_x,
-                            min_y, max_x, max_y, "Polygon", normalize,
-                            objPointsList);
+            // Stream the regions; only one region is in memory at a time
+            AperioRegionReader regionReader = new AperioRegionReader(fileName);
+            BufferedWriter bufferedWriter = null;
+            Image2DMarkupBSON objWriter = new Image2DMarkupBSON(executionMetadata, imgMeta, NAMESPACE, normalize);
+            PolygonBuffer polygonPoints = new PolygonBuffer();
+            try {
+                if (outFileName != null)
+                    bufferedWriter = new BufferedWriter(new FileWriter(outFileName));
+                PolygonData polygon;
+                long t = timer.start();
+                while ((polygon = regionReader.nextRegion()) != null) {
+                    Point[] points = polygon.points;
+                    shiftPoints(points);
+                    if (normalize)
+                        normalizePoints(points);
+                    t = timer.next(LoaderMetrics.Stage.PARSE, t);
+
+                    if (outDB != null) {
+                        // load to segmentation results database
+                        polygonPoints.set(points);
+                        objWriter.clearFeatures();
+                        objWriter.setFootprint(polygon.area);
+                        objWriter.addFeature("Area", polygon.area);
+                        byte[] doc = objWriter.encode(polygonPoints);
+                        t = timer.next(LoaderMetrics.Stage.ENCODE, t);
+                        outDB.submitObjectsDocument(doc);
+                    } else if (bufferedWriter != null) {
+                        // Write segmentation results to file in JSON format
+                        String doc = getGeoJSONDocument(polygon).toString();
+                        t = timer.next(LoaderMetrics.Stage.ENCODE, t);
+                        bufferedWriter.write(doc + "\n");
+                    }
+                    t = timer.next(LoaderMetrics.Stage.SUBMIT, t);
+                    numObjects++;
                 }
-
-				// Set footprint
-				obj_2d.setFootprint(polygon.area); 
-
-                // Set quantitative features
-                HashMap<String, Object> features = new HashMap<>();
-                features.put("Area", polygon.area);
-                HashMap<String, HashMap<String, Object>> ns_features = new HashMap<>();
-                // add namespace
-                String namespace = "http://u24.bmi.stonybrook.edu/v1";
-                ns_features.put(namespace, features);
-                obj_2d.setScalarFeatures(ns_features);
-
-                // Set provenance data
-                obj_2d.setProvenance(executionMetadata, imgMeta);
-
-                if (outDB != null) {
-                    // load to segmentation results database
-                    outDB.submitObjectsDocument(obj_2d.getMetadataDoc());
-                } else if (bufferedWriter != null) {
-                    // Write segmentation results to file in JSON format
-                    bufferedWriter.write(obj_2d.getMetadataDoc().toString() + "\n");
-                }
-			}
+            } finally {
+                regionReader.close();
+                if (bufferedWriter != null)
+                    bufferedWriter.close();
+            }
 
             if (outDB != null) {
+                outDB.flushObjects();
+
                 // Check and register image to analysis mapping information
                 imgExecMap.setMetadataDoc(executionMetadata, imgMeta, colorVal);
                 if (!imgExecMap.checkExists(outDB, executionMetadata.getIdentifier(), executionMetadata.getStudyId(), imgMeta.getCaseid())) {
@@ -263,10 +279,6 @@ public class ProcessAperioXMLFile implements ProcessFile {
                 }
 
             }        
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
-                outFileWriter.close();
-            }
         } catch (Exception e) {
             System.err.println(e.getClass().getName() + ": " + e.getMessage());
         }
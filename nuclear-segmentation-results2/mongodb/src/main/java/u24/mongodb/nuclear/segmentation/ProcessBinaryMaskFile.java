@@ -1,15 +1,11 @@
 package u24.mongodb.nuclear.segmentation;
 
-import com.mongodb.BasicDBList;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
 import org.opencv.core.Point;
 import u24.masktopoly.MaskToPoly;
 import u24.masktopoly.PolygonData;
 
-import java.io.BufferedWriter;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class ProcessBinaryMaskFile implements ProcessFile {
 
@@ -22,9 +18,9 @@ public class ProcessBinaryMaskFile implements ProcessFile {
 	private ResultsDatabase segDB = null;
 	private MaskToPoly maskToPoly;
 	private ImageExecutionMapping imgExecMap;
-	private double min_x, min_y, max_x, max_y;
-	
-	private BufferedWriter bufferedWriter;
+	private ObjectsSink objects; // segDB, or the output files
+	private LoaderMetrics.StageTimer timer = LoaderMetrics.DISABLED;
+	private long objectCnt = 0;
 
 	public ProcessBinaryMaskFile() { }
 
@@ -41,11 +37,21 @@ public class ProcessBinaryMaskFile implements ProcessFile {
 		this.shiftX = shiftX;
 		this.shiftY = shiftY;
 		this.segDB = segDB;
-		this.maskToPoly = new MaskToPoly();
-		
-		this.bufferedWriter = null;
-		if (inputParams.outFileWriter!=null) 
-			this.bufferedWriter = new BufferedWriter(inputParams.outFileWriter);
+		this.maskToPoly = new MaskToPoly(false, inputParams.maskBackend);
+		this.objects = (inputParams.outSink != null) ? inputParams.outSink : segDB;
+		this.timer = inputParams.metrics.getTimer("mask");
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getCaseId() {
+		return caseId;
+	}
+
+	public long getObjectCount() {
+		return objectCnt;
 	}
 
 	void shiftPoints(Point[] points) {
@@ -75,21 +81,19 @@ public class ProcessBinaryMaskFile implements ProcessFile {
 			String cancer_type = "unknown";
 			if (inputParams.doNormalize && (inputParams.selfNormalize==false)) { // normalize using image metadata from the database
 				if (inputParams.getFromDB) {
-					// Query and retrieve image metadata values
-					BasicDBObject imgQuery = new BasicDBObject();
-					imgQuery.put("case_id", caseId);
-					DBObject qryResult = segDB.getImagesCollection().findOne(imgQuery);
-					if (qryResult == null) {
+					// Image metadata is looked up once per case and shared by all files
+					SimpleImageMetadata dbMeta = inputParams.imageCache.get(segDB.getImagesCollection(), caseId);
+					if (dbMeta == null) {
 						System.err.println("ERROR: Cannot find caseid: " + caseId);
 						return;
 					}
 
-					objective = Double.parseDouble(qryResult.get("objective").toString());
-					mpp_x = Double.parseDouble(qryResult.get("mpp_x").toString());
-					mpp_y = Double.parseDouble(qryResult.get("mpp_y").toString());
-					image_width = Double.parseDouble(qryResult.get("width").toString());
-					image_height = Double.parseDouble(qryResult.get("height").toString());
-					cancer_type = qryResult.get("cancer_type").toString();
+					objective = dbMeta.getObjective();
+					mpp_x = dbMeta.getMpp_x();
+					mpp_y = dbMeta.getMpp_y();
+					image_width = dbMeta.getWidth();
+					image_height = dbMeta.getHeight();
+					cancer_type = dbMeta.getCancertype();
 
 					if (mpp_x < 0 || mpp_y < 0) {
 						System.err.println("ERROR: Negative mpp values: (" + mpp_x + " " + mpp_y + "). Image: " + caseId);
@@ -108,8 +112,16 @@ public class ProcessBinaryMaskFile implements ProcessFile {
 			}
 
 			// Extract polygons from the mask file
-			maskToPoly.readMask(fileName);
-			maskToPoly.extractPolygons();
+			// (tiled: the tiles are read while extracting, recorded as parse)
+			long t = timer.start();
+			if (inputParams.tileSize > 0) {
+				maskToPoly.extractPolygonsTiled(fileName, inputParams.tileSize, ForkJoinPool.commonPool());
+			} else {
+				maskToPoly.readMask(fileName);
+				t = timer.next(LoaderMetrics.Stage.READ, t);
+				maskToPoly.extractPolygons();
+			}
+			timer.next(LoaderMetrics.Stage.PARSE, t);
 			if (inputParams.selfNormalize) {
 				image_width  = maskToPoly.getImgWidth();
 				image_height = maskToPoly.getImgHeight();
@@ -128,14 +140,17 @@ public class ProcessBinaryMaskFile implements ProcessFile {
 
 			// Check and register image to analysis mapping information
 			imgExecMap = new ImageExecutionMapping(execMeta, imgMeta, inputParams.colorVal);
-			if (bufferedWriter==null) { // output to db 
-				if (!imgExecMap.checkExists(segDB)) 
-					segDB.submitMetadataDocument(imgExecMap.getMetadataDoc());
-			}
+			inputParams.execMappings.register(objects, imgExecMap);
 
 			List<PolygonData> polygons = maskToPoly.getPolygons();
+			Image2DMarkupBSON objWriter = new Image2DMarkupBSON(execMeta, imgMeta, inputParams.nameSpace, inputParams.doNormalize);
+			if (inputParams.journal != null)
+				objWriter.setSourceFile(fileName);
+			objWriter.setDeterministicIds(inputParams.stableIds);
+			PolygonBuffer polygonPoints = new PolygonBuffer();
 			PolygonData polygon;
 			Point[] points;
+			t = timer.start();
 			for (int i = 0; i < polygons.size(); i++) {
 				polygon = polygons.get(i);
 				points = polygon.points;
@@ -143,49 +158,21 @@ public class ProcessBinaryMaskFile implements ProcessFile {
 				if (inputParams.doNormalize)
 					normalizePoints(points,image_width,image_height);
 
-				Poinsettia pointSetter = new Poinsettia();
-				pointSetter.computeBoundingBox(points);
-				min_x = pointSetter.getMin_x();
-				min_y = pointSetter.getMin_y();
-				max_x = pointSetter.getMax_x();
-				max_y = pointSetter.getMax_y();
-
-				Image2DMarkupGeoJSON obj_2d = new Image2DMarkupGeoJSON();
-
-				BasicDBList objPointsList = pointSetter.getPolygonPoints(points);
-
-				// Check markup data
-				if (objPointsList.size() > 0) {
-					// Set markup data
-					obj_2d.setMarkup(min_x,
-							min_y, max_x, max_y, "Polygon", inputParams.doNormalize,
-							objPointsList);
-				}
-
-				// Set footprint
-				obj_2d.setFootprint(polygon.area); 
-
-				// Set quantitative features
-				HashMap<String, Object> features = new HashMap<>();
-				features.put("Area", polygon.area);
-				HashMap<String, HashMap<String, Object>> ns_features = new HashMap<>();
-				// add namespace
-				ns_features.put(inputParams.nameSpace, features);
-				obj_2d.setScalarFeatures(ns_features);
-
-				// Set provenance data
-				obj_2d.setProvenance(execMeta, imgMeta);
-
 				// load to segmentation results database or write to file
-				if (bufferedWriter!=null)
-					bufferedWriter.write(obj_2d.getMetadataDoc().toString() + "\n");
-				else 
-					segDB.submitObjectsDocument(obj_2d.getMetadataDoc());
-
+				polygonPoints.set(points);
+				objWriter.clearFeatures();
+				objWriter.setFootprint(polygon.area);
+				objWriter.addFeature("Area", polygon.area);
+				byte[] doc = objWriter.encode(polygonPoints);
+				t = timer.next(LoaderMetrics.Stage.ENCODE, t);
+				objects.submitObjectsDocument(doc);
+				t = timer.next(LoaderMetrics.Stage.SUBMIT, t);
+				objectCnt++;
 			}
 			System.out.println("Processed: " + polygons.size() + " polygons.");
-			if (bufferedWriter != null) 
-                bufferedWriter.close();
+			objects.flushObjects();
+			if (inputParams.journal != null)
+				inputParams.journal.fileDone(subjectId, caseId, fileName, polygons.size());
 		} catch (Exception e) {
 			System.err.println(e.getClass().getName() + ": " + e.getMessage());
 		}
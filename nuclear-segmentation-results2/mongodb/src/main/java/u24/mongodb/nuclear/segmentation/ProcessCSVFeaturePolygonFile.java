@@ -1,17 +1,28 @@
 package u24.mongodb.nuclear.segmentation;
 
-import com.mongodb.BasicDBList;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.input.BoundedInputStream;
 
 // Polygon simplification 
 import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
@@ -33,14 +44,18 @@ public class ProcessCSVFeaturePolygonFile implements ProcessFile {
 	private AnalysisExecutionMetadata execMeta;
 	private ImageExecutionMapping imgExecMap;
 	private ResultsDatabase segDB;
-	private double min_x, min_y, max_x, max_y;
+	private ObjectsSink objects; // segDB, or the output files
 	private int numPointsLimit;
 	private double simplifyTolerance;
 	private GeometryFactory geomFactory;
+	private AtomicLong objectCnt = new AtomicLong(); // objects submitted by all ranges
+	private LoaderMetrics.StageTimer timer = LoaderMetrics.DISABLED;
 	
 	private final static Charset ENCODING = StandardCharsets.UTF_8;
 	private final static int     SIMPLIFY_POINTS_LIMIT = 20;
 	private final static double  SIMPLIFY_TOLERANCE    = 0.1;
+	private final static long    MIN_CHUNK_SIZE  = 4L << 20;  // smallest byte range parsed by one thread
+	private final static int     CHUNKS_PER_THREAD = 4;       // more ranges than threads to balance the load
 	
 	public ProcessCSVFeaturePolygonFile() {
 		this.fileName = null;
@@ -60,9 +75,23 @@ public class ProcessCSVFeaturePolygonFile implements ProcessFile {
 		this.execMeta = execMeta;
 		this.inputParams = inputParams;
 		this.segDB = segDB;
+		this.objects = (inputParams.outSink != null) ? inputParams.outSink : segDB;
 		this.numPointsLimit = SIMPLIFY_POINTS_LIMIT;
 		this.simplifyTolerance = SIMPLIFY_TOLERANCE;
 		this.geomFactory = new GeometryFactory();
+		this.timer = inputParams.metrics.getTimer("csv");
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getCaseId() {
+		return caseId;
+	}
+
+	public long getObjectCount() {
+		return objectCnt.get();
 	}
 
 	public boolean isNumeric(String str) {
@@ -75,13 +104,15 @@ public class ProcessCSVFeaturePolygonFile implements ProcessFile {
 	}
 
 	/**
-	 * Does normalization.
+	 * Does normalization. 
+	 * Normalized points are written to outPoints.
 	 */
-	ArrayList<Double> getNormalizedPoints(String values, double img_width, double img_height) {
+	public void getNormalizedPoints(String values, double img_width, double img_height, PolygonBuffer outPoints) {
 		// get list of points and simplify polygon boundaries
 		String[] points = values.split("\\[|:|\\]");
 		int numPoints = (points.length-1)/2;
 		if (inputParams.doSimplify==true && numPoints>numPointsLimit) {
+			long t = timer.start();
 			Coordinate[] coords = new Coordinate[numPoints];
 			for (int i=1, j=0; i<points.length; i+=2, j++) {
 				coords[j]   = new Coordinate();
@@ -97,19 +128,17 @@ public class ProcessCSVFeaturePolygonFile implements ProcessFile {
 			tpSimp.setDistanceTolerance(simplifyTolerance);
 			Geometry outPoly = tpSimp.getResultGeometry();
 			Coordinate[] outCoords = outPoly.getCoordinates();
-			ArrayList<Double> out_points = new ArrayList<>();
+			outPoints.clear();
 			for (int i=0; i<outCoords.length-1; i++) {  // length-1, last element is the same as the first element
-				out_points.add(outCoords[i].x/img_width);
-				out_points.add(outCoords[i].y/img_height);
+				outPoints.add(outCoords[i].x/img_width, outCoords[i].y/img_height);
 			}
-			return out_points;
+			timer.next(LoaderMetrics.Stage.SIMPLIFY, t);
 		} else {
-			ArrayList<Double> out_points = new ArrayList<>();
+			outPoints.clear();
 			for (int i = 1; i < points.length; i += 2) {
-				out_points.add(Double.parseDouble(points[i])/img_width);  // x
-				out_points.add(Double.parseDouble(points[i + 1])/img_height); // y
+				outPoints.add(Double.parseDouble(points[i])/img_width,      // x
+							  Double.parseDouble(points[i + 1])/img_height); // y
 			}
-			return out_points;
 		}
 	}
 
@@ -126,21 +155,19 @@ public class ProcessCSVFeaturePolygonFile implements ProcessFile {
 			String cancer_type = "unknown";
 			if (inputParams.doNormalize) { // normalize using image metadata from the database
 				if (inputParams.getFromDB) {
-					// Query and retrieve image metadata values
-					BasicDBObject imgQuery = new BasicDBObject();
-					imgQuery.put("case_id", caseId);
-					DBObject qryResult = segDB.getImagesCollection().findOne(imgQuery);
-					if (qryResult == null) {
+					// Image metadata is looked up once per case and shared by all files
+					SimpleImageMetadata dbMeta = inputParams.imageCache.get(segDB.getImagesCollection(), caseId);
+					if (dbMeta == null) {
 						System.err.println("ERROR: Cannot find caseid: " + caseId);
 						return;
 					}
 
-					objective = Double.parseDouble(qryResult.get("objective").toString());
-					mpp_x = Double.parseDouble(qryResult.get("mpp_x").toString());
-					mpp_y = Double.parseDouble(qryResult.get("mpp_y").toString());
-					image_width = Double.parseDouble(qryResult.get("width").toString());
-					image_height = Double.parseDouble(qryResult.get("height").toString());
-					cancer_type = qryResult.get("cancer_type").toString();
+					objective = dbMeta.getObjective();
+					mpp_x = dbMeta.getMpp_x();
+					mpp_y = dbMeta.getMpp_y();
+					image_width = dbMeta.getWidth();
+					image_height = dbMeta.getHeight();
+					cancer_type = dbMeta.getCancertype();
 
 					if (mpp_x < 0 || mpp_y < 0) {
 						System.err.println("ERROR: Negative mpp values: (" + mpp_x + " " + mpp_y + "). Image: " + caseId);
@@ -171,101 +198,279 @@ public class ProcessCSVFeaturePolygonFile implements ProcessFile {
 
 			// Check and register image to analysis mapping information
 			imgExecMap = new ImageExecutionMapping(execMeta, imgMeta, inputParams.colorVal);
-			if (!imgExecMap.checkExists(segDB)) {
-				segDB.submitMetadataDocument(imgExecMap.getMetadataDoc());
-			}
+			inputParams.execMappings.register(objects, imgExecMap);
 
 			// Read input CSV file
 			// Extract header information
 			// Last position is Polygon
-			Path path = Paths.get(fileName);
-			BufferedReader br = Files.newBufferedReader(path, ENCODING);
-			String line = br.readLine();
+			FileInputStream headerStream = new FileInputStream(fileName);
+			String line = readHeaderLine(headerStream);
+			long dataStart = headerStream.getChannel().position();
+			headerStream.close();
+			if (line == null) {
+				System.err.println("Error in input file:" + fileName + ". Missing header.");
+				return;
+			}
 			String[] header  = line.split(",");
 			int polygonIndex = header.length-1;
 			if (header[polygonIndex].compareTo("")==0) { // extra comma at the end
 				System.err.println("Error in input file:" + fileName + ". Extra comma at the end.");
 				return;
 			}
-			int lineCnt = 0;
-			while ((line = br.readLine()) != null) {
+
+			// Split the rows into byte ranges at line boundaries and parse them in parallel.
+			// This thread parses ranges too; helpers take the others. Files of an input list 
+			// larger than splitSize get helpers on the split pool only for idle worker slots.
+			int parseThreads = inputParams.parseThreads;
+			boolean useSplitPool = inputParams.splitPool != null 
+					&& (new File(fileName)).length() >= inputParams.splitSize;
+			if (useSplitPool)
+				parseThreads = Math.max(parseThreads, Runtime.getRuntime().availableProcessors());
+			List<long[]> ranges = splitRanges(dataStart, parseThreads);
+			AtomicInteger nextRange = new AtomicInteger();
+			AtomicBoolean failed = new AtomicBoolean(false);
+			int helpers = useSplitPool ? inputParams.parseSlots.availablePermits() : parseThreads - 1;
+			helpers = Math.min(helpers, ranges.size() - 1);
+			ExecutorService parsers = null;
+			if (helpers > 0)
+				parsers = useSplitPool ? inputParams.splitPool : Executors.newFixedThreadPool(helpers);
+			List<Future<Long>> results = new ArrayList<>();
+			long lineCnt = 0;
+			try {
+				for (int i = 0; i < helpers; i++) 
+					results.add(parsers.submit(new RangeParser(ranges, nextRange, header, polygonIndex,
+							imgMeta, mpp_x, mpp_y, image_width, image_height, failed, 
+							useSplitPool ? inputParams.parseSlots : null)));
+				lineCnt = new RangeParser(ranges, nextRange, header, polygonIndex,
+						imgMeta, mpp_x, mpp_y, image_width, image_height, failed, null).call();
+				for (Future<Long> result : results) 
+					lineCnt += result.get();
+			} finally {
+				// wait for the helpers of this file only; the split pool is shared
+				for (Future<Long> result : results) {
+					try {
+						result.get();
+					} catch (ExecutionException e) { 
+						// already reported
+					}
+				}
+				if (parsers != null && !useSplitPool) 
+					parsers.shutdown();
+			}
+			System.out.println("Lines processed: " + lineCnt);
+			if (inputParams.journal != null && !failed.get())
+				inputParams.journal.fileDone(subjectId, caseId, fileName, objectCnt.get());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			System.err.println(cause.getClass().getName() + ": " + cause.getMessage());
+		} catch (Exception e) {
+			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the first line and leave the stream positioned at the next one.
+	 */
+	private static String readHeaderLine(InputStream in) throws IOException {
+		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') 
+			lineBytes.write(b);
+		if (b == -1 && lineBytes.size() == 0)
+			return null;
+		String line = new String(lineBytes.toByteArray(), ENCODING);
+		if (line.endsWith("\r"))
+			line = line.substring(0, line.length() - 1);
+		return line;
+	}
+
+	/**
+	 * Split [dataStart, file size) into byte ranges that start at line boundaries.
+	 * A single range is returned for one thread or a small file.
+	 */
+	List<long[]> splitRanges(long dataStart, int numThreads) throws IOException {
+		List<long[]> ranges = new ArrayList<>();
+		RandomAccessFile raf = new RandomAccessFile(fileName, "r");
+		try {
+			long fileSize = raf.length();
+			long chunkSize = Math.max(MIN_CHUNK_SIZE, (fileSize - dataStart) / ((long) numThreads * CHUNKS_PER_THREAD));
+			if (numThreads <= 1)
+				chunkSize = fileSize;
+
+			byte[] buf = new byte[8192];
+			long start = dataStart;
+			while (start < fileSize) {
+				long end = start + chunkSize;
+				if (end >= fileSize) {
+					end = fileSize;
+				} else { // move the end past the next line break
+					raf.seek(end);
+					int n;
+					boolean found = false;
+					while (!found && (n = raf.read(buf)) > 0) {
+						for (int i = 0; i < n; i++) {
+							if (buf[i] == '\n') {
+								end += i + 1;
+								found = true;
+								break;
+							}
+						}
+						if (!found)
+							end += n;
+					}
+				}
+				ranges.add(new long[] { start, end });
+				start = end;
+			}
+		} finally {
+			raf.close();
+		}
+		if (ranges.isEmpty()) 
+			ranges.add(new long[] { dataStart, dataStart });
+		return ranges;
+	}
+
+	/**
+	 * Parse, normalize, simplify and submit the rows in bytes [start, end) of the file.
+	 * Runs on any thread; the objects are flushed by the calling thread.
+	 * The parse stage of the metrics includes the simplification.
+	 * Returns the number of lines read.
+	 */
+	long processRange(long start, long end, String[] header, int polygonIndex,
+			SimpleImageMetadata imgMeta, double mpp_x, double mpp_y,
+			double image_width, double image_height, AtomicBoolean failed) throws IOException {
+		FileInputStream fis = new FileInputStream(fileName);
+		fis.getChannel().position(start);
+		BufferedReader br = new BufferedReader(new InputStreamReader(new BoundedInputStream(fis, end - start), ENCODING));
+		Image2DMarkupBSON obj_2d = new Image2DMarkupBSON(execMeta, imgMeta, inputParams.nameSpace, inputParams.doNormalize);
+		if (inputParams.journal != null)
+			obj_2d.setSourceFile(fileName);
+		obj_2d.setDeterministicIds(inputParams.stableIds);
+		PolygonBuffer normPoints = new PolygonBuffer();
+		long lineCnt = 0;
+		long submitCnt = 0;
+		try {
+			String line;
+			long t = timer.start();
+			while ((line = br.readLine()) != null && !failed.get()) {
+				t = timer.next(LoaderMetrics.Stage.READ, t);
 				// Parse the segmentation results
 				String[] values = line.split(",");
 
 				if (values.length != header.length) {
 					System.err.println("Error in input file: " + fileName + ". Missing columns (row length: "
 							+ values.length + "!=" + header.length);
-					return;
+					failed.set(true);
+					break;
 				}
 
 				double micronArea = 10.0; 
 				if (inputParams.doNormalize) micronArea = Float.parseFloat(values[0]) * mpp_x * mpp_y;
 				if (micronArea>=inputParams.minSize && micronArea<inputParams.maxSize) { // Eliminate too small and too large nuclei
 					// Extract polygon information	
-					ArrayList<Double> normPoints = getNormalizedPoints(values[polygonIndex], image_width, image_height);
-
-					Poinsettia pointSetter = new Poinsettia();
-					pointSetter.getBoundingBox(normPoints);
-
-					min_x = pointSetter.getMin_x();
-					min_y = pointSetter.getMin_y();
-					max_x = pointSetter.getMax_x();
-					max_y = pointSetter.getMax_y();
-
-					Image2DMarkupGeoJSON obj_2d = new Image2DMarkupGeoJSON();
-					BasicDBList objPointsList = pointSetter.getPolygonPoints(normPoints);
-
-					// Set markup data
-					if (objPointsList.size() > 0)    
-						obj_2d.setMarkup(min_x, min_y, max_x, max_y, "Polygon", inputParams.doNormalize, objPointsList);
+					getNormalizedPoints(values[polygonIndex], image_width, image_height, normPoints);
 
 					// Set scalar features
 					// Last column is Polygon data
 					// Area == NumberOfPixels is column 1
-					HashMap<String, Object> features = setFeatures(values, header, polygonIndex, mpp_x, mpp_y, obj_2d);
+					setFeatures(values, header, polygonIndex, mpp_x, mpp_y, obj_2d);
+					t = timer.next(LoaderMetrics.Stage.PARSE, t);
 
-					HashMap<String, HashMap<String, Object>> ns_features = new HashMap<>();
-					ns_features.put(inputParams.nameSpace, features);
+					// load to segmentation results database or write to file
+					byte[] doc = obj_2d.encode(normPoints);
+					t = timer.next(LoaderMetrics.Stage.ENCODE, t);
+					objects.submitObjectsDocument(doc);
+					t = timer.next(LoaderMetrics.Stage.SUBMIT, t);
+					submitCnt++;
+				} else {
+					t = timer.next(LoaderMetrics.Stage.PARSE, t);
+				}
+				lineCnt++;
+			}
+		} finally {
+			br.close();
+			objects.flushObjects();
+			objectCnt.addAndGet(submitCnt);
+		}
+		return lineCnt;
+	}
 
-					obj_2d.setScalarFeatures(ns_features);
+	/**
+	 * Parses the byte ranges of a file that are not taken yet, on the worker
+	 * that owns the file or as a helper on a pool thread. A helper on the split
+	 * pool parses a range only while it holds a free worker slot.
+	 */
+	private class RangeParser implements Callable<Long> {
+		private List<long[]> ranges;
+		private AtomicInteger nextRange;
+		private Semaphore slots;
+		private String[] header;
+		private int polygonIndex;
+		private SimpleImageMetadata imgMeta;
+		private double mpp_x, mpp_y;
+		private double image_width, image_height;
+		private AtomicBoolean failed;
 
-					// Set provenance data
-					obj_2d.setProvenance(execMeta, imgMeta);
+		RangeParser(List<long[]> ranges, AtomicInteger nextRange, String[] header, int polygonIndex,
+				SimpleImageMetadata imgMeta, double mpp_x, double mpp_y,
+				double image_width, double image_height, AtomicBoolean failed, Semaphore slots) {
+			this.ranges = ranges;
+			this.nextRange = nextRange;
+			this.slots = slots;
+			this.header = header;
+			this.polygonIndex = polygonIndex;
+			this.imgMeta = imgMeta;
+			this.mpp_x = mpp_x;
+			this.mpp_y = mpp_y;
+			this.image_width = image_width;
+			this.image_height = image_height;
+			this.failed = failed;
+		}
 
-					// load to segmentation results database
-					segDB.submitObjectsDocument(obj_2d.getMetadataDoc());
+		public Long call() throws IOException {
+			long lineCnt = 0;
+			while (!failed.get()) {
+				if (slots != null && !slots.tryAcquire())
+					break; // no idle worker; the owner parses the rest
+				try {
+					int i = nextRange.getAndIncrement();
+					if (i >= ranges.size())
+						break;
+					lineCnt += processRange(ranges.get(i)[0], ranges.get(i)[1], header, polygonIndex,
+							imgMeta, mpp_x, mpp_y, image_width, image_height, failed);
+				} catch (IOException | RuntimeException e) {
+					failed.set(true); // stop the other ranges
+					throw e;
+				} finally {
+					if (slots != null)
+						slots.release();
 				}
-				lineCnt++;
 			}
-			System.out.println("Lines processed: " + lineCnt);
-			br.close();
-		} catch (Exception e) {
-			System.err.println(e.getClass().getName() + ": " + e.getMessage());
+			return lineCnt;
 		}
 	}
 
-	public HashMap<String, Object> setFeatures(String[] values, String[] header, int colEnd, 
-			double mpp_x, double mpp_y, Image2DMarkupGeoJSON obj_2d) {
-		HashMap<String, Object> features = new HashMap<>();
+	public void setFeatures(String[] values, String[] header, int colEnd, 
+			double mpp_x, double mpp_y, Image2DMarkupBSON obj_2d) {
+		obj_2d.clearFeatures();
 		if (inputParams.doNormalize) { // Dealing with QUIP CSV Format 
 			// Area == NumberOfPixels is column 1
 			// Set footprint and NumberOfPixels 
 			if (isNumeric(values[0])) {
 				double area = Double.parseDouble(values[0]);
 				obj_2d.setFootprint(area); // Footprint
-				features.put("SizeInPixels", area); 
-				features.put("PhysicalSize", mpp_x * mpp_y * area);
+				obj_2d.addFeature("SizeInPixels", area); 
+				obj_2d.addFeature("PhysicalSize", mpp_x * mpp_y * area);
 			}
 			for (int i=1;i<colEnd;i++) {
 				if (isNumeric(values[i])) 
-					features.put(header[i], Float.parseFloat(values[i]));
+					obj_2d.addFeature(header[i], Float.parseFloat(values[i]));
 			}
 		} else {
 			for (int i=0;i<colEnd;i++) {
 				if (isNumeric(values[i])) 
-					features.put(header[i], Float.parseFloat(values[i]));
+					obj_2d.addFeature(header[i], Float.parseFloat(values[i]));
 			}
 		}
-		return features;
 	}
 }
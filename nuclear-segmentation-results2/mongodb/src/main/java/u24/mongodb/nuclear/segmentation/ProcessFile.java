@@ -2,4 +2,13 @@ package u24.mongodb.nuclear.segmentation;
 
 public interface ProcessFile {
 	void processFile();
+
+	String getFileName();
+
+	String getCaseId();
+
+	/**
+	 * Objects submitted by processFile.
+	 */
+	long getObjectCount();
 }
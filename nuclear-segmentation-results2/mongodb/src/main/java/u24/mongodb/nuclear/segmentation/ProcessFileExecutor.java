@@ -0,0 +1,146 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs ProcessFile tasks on a pool of worker threads.
+ * Tasks wait in a bounded queue; submit() blocks once the workers and 
+ * the queue are full, so the input list is read only as fast as it is processed.
+ * The number of workers can be changed while tasks run (see AdaptivePoolController).
+ * A running task holds one of numThreads parse slots; the free slots may be
+ * used to parse parts of a large file on the split pool.
+ */
+class ProcessFileExecutor {
+	private ThreadPoolExecutor executor;
+	private ResizableSemaphore slots;
+	private ResizableSemaphore parseSlots;
+	private int numThreads;
+	private List<FileListener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Semaphore whose permits can be taken away without waiting for them.
+	 */
+	private static class ResizableSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		ResizableSemaphore(int permits) {
+			super(permits);
+		}
+
+		void reduce(int reduction) {
+			reducePermits(reduction);
+		}
+	}
+
+	public ProcessFileExecutor(int numThreads, int queueDepth) {
+		// The slots bound the tasks queued and running. A worker gives back its slot
+		// before it is free for the next task, so the queue itself is not bounded:
+		// it may briefly hold numThreads + queueDepth tasks, more after setThreads.
+		this.executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>());
+		this.slots = new ResizableSemaphore(numThreads + queueDepth);
+		this.parseSlots = new ResizableSemaphore(numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public synchronized int getThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Change the number of worker threads. Extra workers stop after their current task.
+	 */
+	public synchronized void setThreads(int threads) {
+		if (threads < 1 || threads == numThreads)
+			return;
+		if (threads > numThreads) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+			slots.release(threads - numThreads);
+			parseSlots.release(threads - numThreads);
+		} else {
+			slots.reduce(numThreads - threads);
+			parseSlots.reduce(numThreads - threads);
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+		numThreads = threads;
+	}
+
+	/**
+	 * Slots of the worker threads, one held by each running task.
+	 * Take a free slot with tryAcquire to use an idle worker's core.
+	 */
+	public Semaphore getParseSlots() {
+		return parseSlots;
+	}
+
+	/**
+	 * Add before the first submit.
+	 */
+	public void addFileListener(FileListener listener) {
+		if (listener != null)
+			listeners.add(listener);
+	}
+
+	/**
+	 * Number of tasks waiting for a worker.
+	 */
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	public void submit(final ProcessFile inpFile) throws InterruptedException {
+		slots.acquire();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					FileProcessedEvent event = new FileProcessedEvent();
+					event.begin();
+					parseSlots.acquireUninterruptibly(); // free unless a split range is using it
+					long start = System.nanoTime();
+					try {
+						inpFile.processFile();
+					} finally {
+						parseSlots.release();
+						long elapsed = System.nanoTime() - start;
+						commitEvent(event, inpFile);
+						for (FileListener listener : listeners)
+							listener.fileDone(inpFile, elapsed);
+						slots.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			slots.release();
+			throw e;
+		}
+	}
+
+	private static void commitEvent(FileProcessedEvent event, ProcessFile inpFile) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.inputType = LoaderMetrics.getInputType(inpFile);
+			event.caseId    = inpFile.getCaseId();
+			event.file      = inpFile.getFileName();
+			event.bytes     = (event.file == null) ? 0 : (new File(event.file)).length();
+			event.objects   = inpFile.getObjectCount();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Wait for all submitted tasks to complete.
+	 */
+	public void finish() throws InterruptedException {
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.HOURS)) { }
+	}
+}
@@ -1,17 +1,6 @@
 package u24.mongodb.nuclear.segmentation;
 
-import com.mongodb.BasicDBList;
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-
-import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -26,9 +15,10 @@ public class ProcessTSVQuipFile implements ProcessFile {
     // private boolean geoJSON;
     private AnalysisExecutionMetadata execMeta;
     private ResultsDatabase segDB;
+    private ObjectsSink objects; // segDB, or the output files
     private ImageExecutionMapping imgExecMap;
-    private double min_x, min_y, max_x, max_y;
-    private static final Charset ENCODING = StandardCharsets.UTF_8;
+    private LoaderMetrics.StageTimer timer = LoaderMetrics.DISABLED;
+    private long numObjects = 0;
     private static final boolean normalize = true;
 
 
@@ -44,12 +34,26 @@ public class ProcessTSVQuipFile implements ProcessFile {
         this.caseId = caseId;
         this.execMeta = execMeta;
         this.segDB = segDB;
+        this.objects = (inputParams.outSink != null) ? inputParams.outSink : segDB;
         this.imgExecMap = new ImageExecutionMapping();
+        this.timer = inputParams.metrics.getTimer("tsv");
     }
 
     public ProcessTSVQuipFile() {
     }
 
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getCaseId() {
+        return caseId;
+    }
+
+    public long getObjectCount() {
+        return numObjects;
+    }
+
     public boolean isNumeric(String str) {
         try {
             Double.parseDouble(str);
@@ -60,33 +64,13 @@ public class ProcessTSVQuipFile implements ProcessFile {
     }
 
 
-    List<String> readSmallTextFile(String aFileName) throws IOException {
-        Path path = Paths.get(aFileName);
-        return Files.readAllLines(path, ENCODING);
-    }
-
     /**
      * Does normalization.
+     * Parses the polygon column of the reader's current row into out_points.
      */
-    ArrayList<Double> getNormalizedPoints(String points, double img_width,
-                                          double img_height) {
-
-        StringTokenizer pp = new StringTokenizer(points, ";");
-        ArrayList<Double> out_points = new ArrayList<>();
-        while (pp.hasMoreTokens()) {
-            String[] xy = pp.nextToken().split(",");
-
-            double x = Double.parseDouble(xy[0]);
-            double y = Double.parseDouble(xy[1]);
-
-            x = x / img_width;
-            y = y / img_height;
-
-            out_points.add(x);
-            out_points.add(y);
-        }
-
-        return out_points;
+    public void getNormalizedPoints(TSVQuipReader reader, int polygonColumn, double img_width,
+                                    double img_height, PolygonBuffer out_points) {
+        reader.getPoints(polygonColumn, img_width, img_height, out_points);
     }
 
     /**
@@ -115,21 +99,19 @@ public class ProcessTSVQuipFile implements ProcessFile {
             String cancer_type  = "unknown"; 
         	if (inputParams.doNormalize) {
         		if (inputParams.getFromDB) {
-        			// Query and retrieve image metadata values
-					BasicDBObject imgQuery = new BasicDBObject();
-					imgQuery.put("case_id", caseId);
-					DBObject qryResult = segDB.getImagesCollection().findOne(imgQuery);
-					if (qryResult == null) {
+        			// Image metadata is looked up once per case and shared by all files
+					SimpleImageMetadata dbMeta = inputParams.imageCache.get(segDB.getImagesCollection(), caseId);
+					if (dbMeta == null) {
 						System.err.println("ERROR: Cannot find caseid: " + caseId);
 						return;
 					}
 
-					objective = Double.parseDouble(qryResult.get("objective").toString());
-					mpp_x = Double.parseDouble(qryResult.get("mpp_x").toString());
-					mpp_y = Double.parseDouble(qryResult.get("mpp_y").toString());
-					image_width = Double.parseDouble(qryResult.get("width").toString());
-					image_height = Double.parseDouble(qryResult.get("height").toString());
-					cancer_type = qryResult.get("cancer_type").toString();
+					objective = dbMeta.getObjective();
+					mpp_x = dbMeta.getMpp_x();
+					mpp_y = dbMeta.getMpp_y();
+					image_width = dbMeta.getWidth();
+					image_height = dbMeta.getHeight();
+					cancer_type = dbMeta.getCancertype();
 
 					if (mpp_x < 0 || mpp_y < 0) {
 						System.err.println("ERROR: Negative mpp values: (" + mpp_x + " " + mpp_y + "). Image: " + caseId);
@@ -158,83 +140,68 @@ public class ProcessTSVQuipFile implements ProcessFile {
             imgMeta.setObjective(objective);
             imgMeta.setCancertype(cancer_type);
 
-            List<String> lines = readSmallTextFile(fileName);
-
             // Check and register image to analysis mapping information
             imgExecMap.setMetadataDoc(execMeta, imgMeta, inputParams.colorVal);
 
-            if (!imgExecMap.checkExists(segDB, execMeta.getIdentifier(), execMeta.getStudyId(), imgMeta.getCaseid())) {
-                segDB.submitMetadataDocument(imgExecMap.getMetadataDoc());
-            }
-
-            System.out.println("Lines: " + lines.size());
-
-            // Parse header information
-            List<String> headers = new ArrayList<>();
-            StringTokenizer st = new StringTokenizer(lines.get(0), "\t");
-            while (st.hasMoreTokens()) {
-                headers.add(st.nextToken());
-            }
-
-            // Read lines following header (i = 1).
-            for (int i = 1; i < lines.size(); i++) {
-                // Parse the segmentation results
-                List<String> values = new ArrayList<>();
-
-                StringTokenizer vst = new StringTokenizer(lines.get(i), " \t");
-                while (vst.hasMoreTokens()) {
-                    values.add(vst.nextToken());
-                }
-
-                ArrayList<Double> normPoints = getNormalizedPoints(
-                        values.get(headers.size() - 1), image_width,
-                        image_height);
-
-                Poinsettia flowerPot = new Poinsettia();
-                flowerPot.getBoundingBox(normPoints);
-
-                min_x = flowerPot.getMin_x();
-                min_y = flowerPot.getMin_y();
-                max_x = flowerPot.getMax_x();
-                max_y = flowerPot.getMax_y();
-
-                BasicDBList objPointsList = flowerPot.getPolygonPoints(normPoints);
-
-                Image2DMarkupGeoJSON obj_2d = new Image2DMarkupGeoJSON();
-
-                // Check markup data
-                if (objPointsList.size() > 0) {
-                    // Set markup data
-                    obj_2d.setMarkup(min_x,
-                            min_y, max_x, max_y, "Polygon", normalize,
-                            objPointsList);
+            inputParams.execMappings.register(objects, imgExecMap);
+
+            numObjects = 0;
+            TSVQuipReader reader = new TSVQuipReader(fileName);
+            try {
+                // Parse header information
+                List<String> headers = reader.readHeader();
+                int polygonColumn = headers.size() - 1;
+
+                Image2DMarkupBSON obj_2d = new Image2DMarkupBSON(execMeta, imgMeta, inputParams.nameSpace, normalize);
+                if (inputParams.journal != null)
+                    obj_2d.setSourceFile(fileName);
+                obj_2d.setDeterministicIds(inputParams.stableIds);
+                PolygonBuffer normPoints = new PolygonBuffer();
+
+                // Read lines following header.
+                long t = timer.start();
+                while (reader.nextRow()) {
+                    t = timer.next(LoaderMetrics.Stage.READ, t);
+                    if (reader.getFieldCount() <= polygonColumn) {
+                        System.err.println("Error in input file: " + fileName + ". Missing columns in row " 
+                                + reader.getRowCount());
+                        return;
+                    }
+
+                    // Parse the segmentation results
+                    getNormalizedPoints(reader, polygonColumn, 
+                            image_width, image_height, normPoints);
+
+                    // Set scalar features
+                    setFeatures(headers, reader, obj_2d);
+                    t = timer.next(LoaderMetrics.Stage.PARSE, t);
+
+                    // load to segmentation results database or write to file
+                    byte[] doc = obj_2d.encode(normPoints);
+                    t = timer.next(LoaderMetrics.Stage.ENCODE, t);
+                    objects.submitObjectsDocument(doc);
+                    t = timer.next(LoaderMetrics.Stage.SUBMIT, t);
+                    numObjects++;
                 }
-
-                // Set scalar features
-                HashMap<String, Object> features = setFeatures(headers, values, obj_2d);
-
-                HashMap<String, HashMap<String, Object>> ns_features = new HashMap<>();
-                ns_features.put(inputParams.nameSpace, features);
-                obj_2d.setScalarFeatures(ns_features);
-
-                // Set provenance data
-                obj_2d.setProvenance(execMeta, imgMeta);
-
-                // load to segmentation results database
-                segDB.submitObjectsDocument(obj_2d.getMetadataDoc());
+                System.out.println("Lines processed: " + reader.getRowCount());
+            } finally {
+                reader.close();
             }
+            objects.flushObjects();
+            if (inputParams.journal != null)
+                inputParams.journal.fileDone(subjectId, caseId, fileName, numObjects);
         } catch (Exception e) {
             System.err.println(e.getClass().getName() + ": " + e.getMessage());
         }
     }
 
-    public HashMap<String, Object> setFeatures(List<String> headers, List<String> values, Image2DMarkupGeoJSON obj_2d) {
-        HashMap<String, Object> features = new HashMap<>();
+    public void setFeatures(List<String> headers, TSVQuipReader values, Image2DMarkupBSON obj_2d) {
+        obj_2d.clearFeatures();
         for (int j = 3; j < headers.size() - 1; j++) {
-            if (isNumeric(values.get(j))) {
+            if (values.isNumeric(j)) {
                 String name = headers.get(j);
-                double value = Double.parseDouble(values.get(j));
-                features.put(name, value);
+                double value = values.getDouble(j);
+                obj_2d.addFeature(name, value);
 
                 if (name.equalsIgnoreCase("area")) {
                     obj_2d.setFootprint(value);
@@ -243,7 +210,5 @@ public class ProcessTSVQuipFile implements ProcessFile {
 
         }
 
-        return features;
-
     }
 }
@@ -0,0 +1,118 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only record of the progress of an input list.
+ * A line is written when a file is started and when all its objects
+ * are written:
+ *
+ *   S	subjectId	caseId	fileName
+ *   D	subjectId	caseId	fileName	numObjects
+ *
+ * A resumed run skips the files marked done, and removes the objects of
+ * files that were started but not finished before loading them again.
+ */
+public class ProgressJournal {
+
+	private static final String STARTED = "S";
+	private static final String DONE    = "D";
+
+	private String journalFile;
+	private BufferedWriter writer;
+	// state of each file from the previous runs: STARTED or DONE
+	private Map<String, String> previous;
+
+	/**
+	 * Open the journal. With resume, the entries of previous runs are read
+	 * and new entries are appended; otherwise the journal is started over.
+	 */
+	public ProgressJournal(String journalFile, boolean resume) throws IOException {
+		this.journalFile = journalFile;
+		this.previous = new HashMap<String, String>();
+		boolean endsWithLine = true;
+		if (resume && new File(journalFile).exists()) {
+			readEntries();
+			endsWithLine = endsWithNewLine();
+		}
+		this.writer = new BufferedWriter(new FileWriter(journalFile, resume));
+		if (!endsWithLine) // do not append to the incomplete last line
+			append("");
+	}
+
+	private boolean endsWithNewLine() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+		try {
+			if (raf.length() == 0)
+				return true;
+			raf.seek(raf.length() - 1);
+			return raf.read() == '\n';
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void readEntries() throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(journalFile));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length < 4) // incomplete last line of a run that died
+					continue;
+				String key = getKey(fields[1], fields[2], fields[3]);
+				if (fields[0].equals(DONE))
+					previous.put(key, DONE);
+				else if (fields[0].equals(STARTED) && !DONE.equals(previous.get(key)))
+					previous.put(key, STARTED);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * True if a previous run has loaded all objects of the file.
+	 */
+	public boolean isDone(String subjectId, String caseId, String fileName) {
+		return DONE.equals(previous.get(getKey(subjectId, caseId, fileName)));
+	}
+
+	/**
+	 * True if a previous run has started the file but not finished it,
+	 * so some of its objects may be in the database.
+	 */
+	public boolean isPartial(String subjectId, String caseId, String fileName) {
+		return STARTED.equals(previous.get(getKey(subjectId, caseId, fileName)));
+	}
+
+	public void fileStarted(String subjectId, String caseId, String fileName) throws IOException {
+		append(STARTED + "\t" + subjectId + "\t" + caseId + "\t" + fileName);
+	}
+
+	public void fileDone(String subjectId, String caseId, String fileName, long numObjects) throws IOException {
+		append(DONE + "\t" + subjectId + "\t" + caseId + "\t" + fileName + "\t" + numObjects);
+	}
+
+	private synchronized void append(String entry) throws IOException {
+		writer.write(entry);
+		writer.newLine();
+		writer.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	private static String getKey(String subjectId, String caseId, String fileName) {
+		return subjectId + "\t" + caseId + "\t" + fileName;
+	}
+}
@@ -1,22 +1,60 @@
 package u24.mongodb.nuclear.segmentation;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 import com.mongodb.MongoClientURI;
 
 /**
  * Submit operations.
+ * Objects documents are buffered per thread and written as unordered bulk inserts.
+ * The inserts run on the submitting thread, or on writer threads that drain 
+ * a bounded queue of batches if setWriterThreads() was called.
  */
-public class ResultsDatabase {
+public class ResultsDatabase implements ObjectsSink {
+
+    public static final int  DEFAULT_BATCH_SIZE     = 1000;
+    public static final long DEFAULT_FLUSH_INTERVAL = 5000; // milliseconds
+
+    // Connection pool of the client shared by all loader threads
+    public static final int DEFAULT_POOL_SIZE  = 100;
+    public static final int DEFAULT_WAIT_QUEUE = 500;    // threads waiting for a connection
+    public static final int DEFAULT_MAX_WAIT   = 120000; // milliseconds
+
+    public static final int DEFAULT_WRITE_QUEUE = 16; // batches
 
     private String resultsDatabase = "u24_results";
 
@@ -28,13 +66,103 @@ public class ResultsDatabase {
     private DBCollection collMetadata;
     private DBCollection collImages;
 
+    private int  batchSize     = DEFAULT_BATCH_SIZE;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /**
+     * Objects documents waiting to be inserted by one thread.
+     */
+    private static class ObjectsBatch {
+        List<DBObject> docs = new ArrayList<>();
+        long lastFlush = System.currentTimeMillis();
+        // batches of this thread in the write queue or being written
+        AtomicInteger pending = new AtomicInteger();
+        Object pendingLock = new Object();
+    }
+
+    /**
+     * A batch handed to the writer threads.
+     */
+    private static class QueuedBatch {
+        ObjectsBatch owner;
+        List<DBObject> docs;
+
+        QueuedBatch(ObjectsBatch owner, List<DBObject> docs) {
+            this.owner = owner;
+            this.docs = docs;
+        }
+    }
+
+    private static final QueuedBatch END_OF_QUEUE = new QueuedBatch(null, null);
+
+    private BlockingQueue<QueuedBatch> writeQueue = null;
+    private List<Thread> writers = new ArrayList<>();
+    private AtomicInteger activeWriters = new AtomicInteger();
+    private AtomicInteger maxQueueDepth = new AtomicInteger();
+    private AtomicLong submitWaitTime = new AtomicLong(); // nanoseconds
+    private AtomicLong writerIdleTime = new AtomicLong(); // nanoseconds
+
+    private Set<ObjectsBatch> allBatches = Collections.newSetFromMap(new ConcurrentHashMap<ObjectsBatch, Boolean>());
+    private ThreadLocal<ObjectsBatch> threadBatch = new ThreadLocal<ObjectsBatch>() {
+        @Override
+        protected ObjectsBatch initialValue() {
+            ObjectsBatch batch = new ObjectsBatch();
+            allBatches.add(batch);
+            return batch;
+        }
+    };
+
+    /**
+     * Pipes pre-encoded documents (see Image2DMarkupBSON) to the wire as they are.
+     */
+    private static class RawBSONEncoder implements DBEncoder {
+        private DBEncoder defaultEncoder = DefaultDBEncoder.FACTORY.create();
+
+        public int writeObject(OutputBuffer outBuf, BSONObject doc) {
+            if (doc instanceof LazyDBObject) {
+                LazyDBObject rawDoc = (LazyDBObject) doc;
+                try {
+                    return rawDoc.pipe(outBuf);
+                } catch (java.io.IOException e) {
+                    throw new MongoException("Exception writing raw BSON document", e);
+                }
+            }
+            return defaultEncoder.writeObject(outBuf, doc);
+        }
+    }
+
+    private static final DBEncoderFactory RAW_BSON_ENCODER_FACTORY = new DBEncoderFactory() {
+        public DBEncoder create() {
+            return new RawBSONEncoder();
+        }
+    };
+
+    private LazyDBCallback rawCallback = new LazyDBCallback(null);
+
+    private AtomicLong insertedCount = new AtomicLong();
+    private AtomicLong failedCount   = new AtomicLong();
+    private AtomicLong batchCount    = new AtomicLong();
+    private AtomicLong duplicateCount = new AtomicLong();
+    private AtomicLong insertTime    = new AtomicLong(); // nanoseconds in bulk inserts
+
+    private static final int DUPLICATE_KEY_ERROR = 11000;
+
     /**
      * Constructor.
      * Open connections.
      */
     public ResultsDatabase(String dbURI) {
+        this(dbURI, MongoClientOptions.builder());
+    }
+
+    /**
+     * Constructor.
+     * Open connections with the given client options, see getClientOptions().
+     * The client is thread-safe; share one instance between the loader threads.
+     */
+    public ResultsDatabase(String dbURI, MongoClientOptions.Builder options) {
         try {
-            MongoClientURI mongoURI = new MongoClientURI(dbURI);
+            MongoClientURI mongoURI = new MongoClientURI(dbURI, options);
             mongoClient = new MongoClient(mongoURI);
             resultsDatabase = mongoURI.getDatabase();
             db = mongoClient.getDB(resultsDatabase);	
@@ -63,18 +191,112 @@ public class ResultsDatabase {
         initCollections();
     }
     
+    /**
+     * Client options for the connection pool.
+     * waitQueueSize is the number of threads that may wait for a free connection
+     * at once, and maxWaitTime how long (in milliseconds) each of them waits.
+     */
+    public static MongoClientOptions.Builder getClientOptions(int poolSize, int waitQueueSize, int maxWaitTime) {
+        poolSize = (poolSize > 0) ? poolSize : 1;
+        int waitMultiplier = Math.max(1, (waitQueueSize + poolSize - 1) / poolSize);
+        return MongoClientOptions.builder()
+                .connectionsPerHost(poolSize)
+                .threadsAllowedToBlockForConnectionMultiplier(waitMultiplier)
+                .maxWaitTime(maxWaitTime);
+    }
+
     /**
      * Access specific collections.
      */
     private void initCollections() {
         String objectsCollection = "objects";
         collObjects = db.getCollection(objectsCollection);
+        collObjects.setDBEncoderFactory(RAW_BSON_ENCODER_FACTORY);
         String metadataCollection = "metadata";
         collMetadata = db.getCollection(metadataCollection);
         String imagesCollection = "images";
         collImages = db.getCollection(imagesCollection);
     }
     
+    /**
+     * Number of objects documents buffered per thread before a bulk insert.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = (batchSize > 0) ? batchSize : 1;
+    }
+
+    /**
+     * Maximum time (in milliseconds) a thread holds buffered documents 
+     * before they are written at the next submit.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Write objects on numWriters background threads. Full batches are put in 
+     * a queue of at most queueSize batches; submitting threads block while 
+     * it is full. Call before any document is submitted.
+     */
+    public void setWriterThreads(int numWriters, int queueSize) {
+        if (numWriters <= 0 || writeQueue != null)
+            return;
+        writeQueue = new ArrayBlockingQueue<QueuedBatch>(Math.max(queueSize, 1));
+        setWriterCount(numWriters);
+    }
+
+    /**
+     * Change the number of writer threads while documents are submitted.
+     * A writer that is stopped finishes the batches queued before the stop.
+     * Has no effect unless setWriterThreads() was called.
+     */
+    public synchronized void setWriterCount(int numWriters) {
+        if (writeQueue == null || numWriters < 1)
+            return;
+        while (activeWriters.get() < numWriters) {
+            final int writerId = writers.size();
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    drainWriteQueue();
+                }
+            }, "objects-writer-" + writerId);
+            writer.setDaemon(true);
+            activeWriters.incrementAndGet();
+            writer.start();
+            writers.add(writer);
+        }
+        while (activeWriters.get() > numWriters) {
+            if (!writeQueue.offer(END_OF_QUEUE))
+                break; // queue is full; try again later
+            activeWriters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of writer threads, not counting the ones asked to stop.
+     */
+    public int getWriterCount() {
+        return activeWriters.get();
+    }
+
+    /**
+     * Number of batches waiting for a writer thread.
+     */
+    public int getQueueDepth() {
+        return (writeQueue == null) ? 0 : writeQueue.size();
+    }
+
+    public int getQueueCapacity() {
+        return (writeQueue == null) ? 0 : writeQueue.size() + writeQueue.remainingCapacity();
+    }
+
+    /**
+     * Largest number of batches that waited in the write queue.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
     public DB getDB() {
     	return db;
     }
@@ -87,14 +309,262 @@ public class ResultsDatabase {
         return collMetadata.find(query);
     }
 
+    public DBCursor submitAnalysisExecutionMappingQuery(BasicDBObject query, BasicDBObject fields) {
+        return collMetadata.find(query, fields);
+    }
+
+    /**
+     * Queue an objects document for insertion. 
+     * The document is written when the calling thread's batch is full, 
+     * the flush interval has passed, or flushObjects()/close() is called.
+     */
     public ObjectId submitObjectsDocument(BasicDBObject doc) {
         doc.append("submit_date", new Date());
         doc.append("randval", rand.nextFloat());
-        collObjects.insert(doc);
+        if (doc.get("_id") == null)
+            doc.put("_id", new ObjectId());
+
+        addToBatch(doc);
 
         return (ObjectId) doc.get("_id");
     }
 
+    /**
+     * Queue a complete BSON objects document, e.g. from Image2DMarkupBSON.
+     * The document must already contain _id, submit_date and randval.
+     */
+    public void submitObjectsDocument(byte[] bsonDoc) {
+        addToBatch(new LazyDBObject(bsonDoc, rawCallback));
+    }
+
+    private void addToBatch(DBObject doc) {
+        ObjectsBatch batch = threadBatch.get();
+        synchronized (batch) {
+            batch.docs.add(doc);
+            if (batch.docs.size() >= batchSize
+                    || System.currentTimeMillis() - batch.lastFlush >= flushInterval)
+                flushBatch(batch);
+        }
+    }
+
+    /**
+     * Write the documents buffered by the calling thread.
+     * With writer threads, wait until they have written all batches of this thread.
+     */
+    public void flushObjects() {
+        ObjectsBatch batch = threadBatch.get();
+        synchronized (batch) {
+            flushBatch(batch);
+        }
+        awaitPending(batch);
+    }
+
+    private void flushBatch(ObjectsBatch batch) {
+        if (batch.docs.isEmpty())
+            return;
+
+        if (writeQueue == null) {
+            try {
+                writeBatch(batch.docs);
+            } finally {
+                batch.docs.clear();
+                batch.lastFlush = System.currentTimeMillis();
+            }
+            return;
+        }
+
+        QueuedBatch queued = new QueuedBatch(batch, batch.docs);
+        batch.docs = new ArrayList<>(Math.min(batchSize, 4096));
+        batch.lastFlush = System.currentTimeMillis();
+        batch.pending.incrementAndGet();
+        if (!writeQueue.offer(queued)) {
+            long start = System.nanoTime();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    writeQueue.put(queued);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            submitWaitTime.addAndGet(System.nanoTime() - start);
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        int depth = writeQueue.size();
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth))
+            max = maxQueueDepth.get();
+    }
+
+    private void awaitPending(ObjectsBatch batch) {
+        boolean interrupted = false;
+        synchronized (batch.pendingLock) {
+            while (batch.pending.get() > 0) {
+                try {
+                    batch.pendingLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writer thread loop: insert queued batches until END_OF_QUEUE.
+     */
+    private void drainWriteQueue() {
+        while (true) {
+            QueuedBatch queued;
+            long start = System.nanoTime();
+            try {
+                queued = writeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            writerIdleTime.addAndGet(System.nanoTime() - start);
+            if (queued == END_OF_QUEUE)
+                return;
+
+            try {
+                writeBatch(queued.docs);
+            } catch (RuntimeException e) {
+                failedCount.addAndGet(queued.docs.size());
+                System.err.println(e.getClass().getName() + ": " + e.getMessage());
+            } finally {
+                if (queued.owner.pending.decrementAndGet() == 0) {
+                    synchronized (queued.owner.pendingLock) {
+                        queued.owner.pendingLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<DBObject> docs) {
+        int numDocs = docs.size();
+        BulkWriteOperation bulkOp = collObjects.initializeUnorderedBulkOperation();
+        for (DBObject doc : docs)
+            bulkOp.insert(doc);
+        BatchInsertedEvent event = new BatchInsertedEvent();
+        event.size = numDocs;
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            BulkWriteResult result = bulkOp.execute();
+            event.inserted = result.isAcknowledged() ? result.getInsertedCount() : numDocs;
+            insertedCount.addAndGet(event.inserted);
+        } catch (BulkWriteException e) {
+            event.inserted = e.getWriteResult().getInsertedCount();
+            insertedCount.addAndGet(event.inserted);
+            // objects with the same _id are already loaded, e.g. by an earlier run with deterministic ids
+            List<BulkWriteError> errors = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() == DUPLICATE_KEY_ERROR) {
+                    duplicateCount.incrementAndGet();
+                    event.duplicates++;
+                } else
+                    errors.add(error);
+            }
+            if (!errors.isEmpty() || e.getWriteConcernError() != null) {
+                failedCount.addAndGet(errors.size());
+                event.failures = errors.size();
+                System.err.println("ERROR: Bulk insert of " + numDocs + " objects: " + errors.size() + " failed. "
+                        + (errors.isEmpty() ? String.valueOf(e.getWriteConcernError()) : errors.get(0).getMessage()));
+            }
+        } catch (MongoException e) {
+            failedCount.addAndGet(numDocs);
+            event.failures = numDocs;
+            System.err.println("ERROR: Bulk insert of " + numDocs + " objects failed. " 
+                    + e.getClass().getName() + ": " + e.getMessage());
+        } finally {
+            insertTime.addAndGet(System.nanoTime() - start);
+            batchCount.incrementAndGet();
+            event.commit();
+        }
+    }
+
+    /**
+     * Flush the documents buffered by all threads and close the connection.
+     * Call after the threads submitting documents have finished.
+     */
+    public void close() {
+        for (ObjectsBatch batch : allBatches) {
+            synchronized (batch) {
+                flushBatch(batch);
+            }
+        }
+        if (writeQueue != null) {
+            try {
+                synchronized (this) {
+                    for (int i = activeWriters.getAndSet(0); i > 0; i--)
+                        writeQueue.put(END_OF_QUEUE);
+                }
+                for (Thread writer : writers)
+                    writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (batchCount.get() > 0) {
+            System.out.println("Objects inserted: " + insertedCount.get() + " failed: " + failedCount.get()
+                    + (duplicateCount.get() > 0 ? " already loaded: " + duplicateCount.get() : "")
+                    + " in " + batchCount.get() + " batches.");
+        }
+        if (writeQueue != null) {
+            System.out.println("Write queue: max depth " + maxQueueDepth.get() + " of " + getQueueCapacity() 
+                    + ", submit wait " + TimeUnit.NANOSECONDS.toMillis(submitWaitTime.get()) + " ms"
+                    + ", writer idle " + TimeUnit.NANOSECONDS.toMillis(writerIdleTime.get()) + " ms.");
+        }
+        if (mongoClient != null)
+            mongoClient.close();
+    }
+
+    /**
+     * Remove the objects loaded from one input file, 
+     * recorded in provenance.source_file, e.g. before loading it again.
+     * Returns the number of objects removed.
+     */
+    public int deleteFileObjects(String execId, String caseId, String sourceFile) {
+        BasicDBObject query = new BasicDBObject();
+        query.put("provenance.analysis.execution_id", execId);
+        query.put("provenance.image.case_id", caseId);
+        query.put("provenance.source_file", sourceFile);
+        return collObjects.remove(query).getN();
+    }
+
+    public long getInsertedCount() {
+        return insertedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of bulk inserts so far.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Total time spent in bulk inserts, in nanoseconds.
+     */
+    public long getInsertTime() {
+        return insertTime.get();
+    }
+
+    /**
+     * Objects skipped because an object with the same _id was already loaded.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
     public ObjectId submitMetadataDocument(BasicDBObject doc) {
         doc.append("submit_date", new Date());
         doc.append("randval", rand.nextFloat());
@@ -103,4 +573,17 @@ public class ResultsDatabase {
         return (ObjectId) doc.get("_id");
     }
 
+    /**
+     * Insert a metadata document unless a document matching the query exists.
+     * Safe to repeat, also from other loader processes.
+     * Returns true if the document was inserted.
+     */
+    public boolean upsertMetadataDocument(BasicDBObject query, BasicDBObject doc) {
+        doc.append("submit_date", new Date());
+        doc.append("randval", rand.nextFloat());
+        WriteResult result = collMetadata.update(query, new BasicDBObject("$setOnInsert", doc), true, false);
+
+        return !result.isUpdateOfExisting();
+    }
+
 }
@@ -95,4 +95,28 @@ public class SimpleImageMetadata {
         image_doc.put("cancer_type", this.cancertype);
     }
 
+    public double getMpp_x() {
+        return mpp_x;
+    }
+
+    public double getMpp_y() {
+        return mpp_y;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public double getObjective() {
+        return objective;
+    }
+
+    public String getCancertype() {
+        return cancertype;
+    }
+
 }
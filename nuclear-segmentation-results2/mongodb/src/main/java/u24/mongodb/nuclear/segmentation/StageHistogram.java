@@ -0,0 +1,114 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Latency histogram of one loader stage, recorded by many threads.
+ * Durations are counted in buckets of a quarter of a power of two, so the
+ * percentiles are within 13% of the measured times. Recording is two
+ * LongAdder increments and does not block.
+ */
+public class StageHistogram implements StageHistogramMXBean {
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS     = 64 * SUB_BUCKETS;
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		public long applyAsLong(long a, long b) {
+			return Math.max(a, b);
+		}
+	};
+
+	private LongAdder[] buckets = new LongAdder[BUCKETS];
+	private LongAdder totalNanos = new LongAdder();
+	private LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+
+	public StageHistogram() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * Buckets 0-3 hold 0-3 ns; above that, bucket 4*e+s holds the durations
+	 * whose highest bit is e and whose next two bits are s.
+	 */
+	private static int getBucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+		int e = 63 - Long.numberOfLeadingZeros(nanos);
+		return e * SUB_BUCKETS + (int) ((nanos >> (e - 2)) & 3);
+	}
+
+	/**
+	 * Middle of the durations of a bucket.
+	 */
+	private static double getBucketValue(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int e = bucket / SUB_BUCKETS;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (e - 2);
+		return lower + (double) (1L << (e - 2)) / 2;
+	}
+
+	public void record(long nanos) {
+		buckets[getBucket(nanos)].increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets)
+			count += bucket.sum();
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	public double getTotalMillis() {
+		return totalNanos.sum() / 1e6;
+	}
+
+	public double getMeanMicros() {
+		long count = getCount();
+		return (count == 0) ? 0 : totalNanos.sum() / 1e3 / count;
+	}
+
+	/**
+	 * Duration below which a fraction p of the recorded durations are, in nanoseconds.
+	 */
+	public double getPercentile(double p) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0)
+			return 0;
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(getBucketValue(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	public double getP50Micros() {
+		return getPercentile(0.50) / 1e3;
+	}
+
+	public double getP99Micros() {
+		return getPercentile(0.99) / 1e3;
+	}
+
+	public double getMaxMicros() {
+		return maxNanos.get() / 1e3;
+	}
+}
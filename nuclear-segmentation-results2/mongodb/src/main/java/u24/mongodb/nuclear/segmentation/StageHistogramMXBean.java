@@ -0,0 +1,18 @@
+package u24.mongodb.nuclear.segmentation;
+
+/**
+ * JMX view of one StageHistogram.
+ */
+public interface StageHistogramMXBean {
+	long getCount();
+
+	double getTotalMillis();
+
+	double getMeanMicros();
+
+	double getP50Micros();
+
+	double getP99Micros();
+
+	double getMaxMicros();
+}
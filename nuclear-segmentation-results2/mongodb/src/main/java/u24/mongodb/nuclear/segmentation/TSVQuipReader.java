@@ -0,0 +1,287 @@
+package u24.mongodb.nuclear.segmentation;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming reader for QUIP TSV files.
+ * The file is read in fixed-size chunks into a reusable row buffer.
+ * Fields are kept as offsets into that buffer and numbers are parsed
+ * in place, so memory use does not depend on the file size.
+ */
+public class TSVQuipReader implements Closeable {
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private InputStream in;
+	private byte[] chunk;
+	private int chunkPos, chunkLen;
+
+	private byte[] row;
+	private int rowLen;
+	private int[] fieldStart;
+	private int[] fieldEnd;
+	private int numFields;
+	private long rowCount;
+
+	public TSVQuipReader(String fileName) throws IOException {
+		this(new FileInputStream(fileName));
+	}
+
+	public TSVQuipReader(InputStream in) {
+		this.in = in;
+		this.chunk = new byte[CHUNK_SIZE];
+		this.chunkPos = 0;
+		this.chunkLen = 0;
+		this.row = new byte[4096];
+		this.fieldStart = new int[64];
+		this.fieldEnd = new int[64];
+		this.rowCount = 0;
+	}
+
+	/**
+	 * Read the header line. Header fields are tab-separated.
+	 */
+	public List<String> readHeader() throws IOException {
+		List<String> headers = new ArrayList<>();
+		if (!readLine())
+			return headers;
+		int start = 0;
+		for (int i = 0; i <= rowLen; i++) {
+			if (i == rowLen || row[i] == '\t') {
+				if (i > start)
+					headers.add(new String(row, start, i - start, StandardCharsets.UTF_8));
+				start = i + 1;
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Advance to the next non-empty row. Fields are separated by tabs or spaces.
+	 */
+	public boolean nextRow() throws IOException {
+		while (readLine()) {
+			splitRow();
+			if (numFields > 0) {
+				rowCount++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getFieldCount() {
+		return numFields;
+	}
+
+	/**
+	 * Number of data rows returned by nextRow() so far.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public String getString(int field) {
+		return new String(row, fieldStart[field], fieldEnd[field] - fieldStart[field], StandardCharsets.UTF_8);
+	}
+
+	public boolean isNumeric(int field) {
+		try {
+			parseDouble(row, fieldStart[field], fieldEnd[field]);
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+		return true;
+	}
+
+	public double getDouble(int field) {
+		return parseDouble(row, fieldStart[field], fieldEnd[field]);
+	}
+
+	/**
+	 * Parse a "x1,y1;x2,y2;..." polygon field, scale the points and write them to outPoints.
+	 */
+	public void getPoints(int field, double img_width, double img_height, PolygonBuffer outPoints) {
+		parsePoints(row, fieldStart[field], fieldEnd[field], img_width, img_height, outPoints);
+	}
+
+	/**
+	 * Parse "x1,y1;x2,y2;..." from buf[start,end). Empty points are skipped.
+	 */
+	static void parsePoints(byte[] buf, int start, int end, double img_width, double img_height,
+			PolygonBuffer outPoints) {
+		outPoints.clear();
+		int pos = start;
+		while (pos < end) {
+			int ptEnd = pos;
+			while (ptEnd < end && buf[ptEnd] != ';')
+				ptEnd++;
+			if (ptEnd > pos) {
+				int comma = pos;
+				while (comma < ptEnd && buf[comma] != ',')
+					comma++;
+				int yEnd = comma + 1;
+				while (yEnd < ptEnd && buf[yEnd] != ',')
+					yEnd++;
+				if (comma >= ptEnd)
+					throw new NumberFormatException("Missing y coordinate in polygon.");
+				double x = parseDouble(buf, pos, comma);
+				double y = parseDouble(buf, comma + 1, yEnd);
+				outPoints.add(x / img_width, y / img_height);
+			}
+			pos = ptEnd + 1;
+		}
+	}
+
+	/**
+	 * Parse a decimal number from ASCII bytes without creating a String.
+	 * Numbers with at most 15 significant digits and a small exponent are
+	 * converted exactly; anything else falls back to Double.parseDouble.
+	 */
+	static double parseDouble(byte[] buf, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+			negative = (buf[i] == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int sigDigits = 0;
+		int exp10 = 0;
+		boolean anyDigits = false;
+		while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+			if (mantissa != 0 || buf[i] != '0')
+				sigDigits++;
+			if (sigDigits <= 18)
+				mantissa = mantissa * 10 + (buf[i] - '0');
+			else
+				exp10++;
+			anyDigits = true;
+			i++;
+		}
+		if (i < end && buf[i] == '.') {
+			i++;
+			while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+				if (mantissa != 0 || buf[i] != '0')
+					sigDigits++;
+				if (sigDigits <= 18) {
+					mantissa = mantissa * 10 + (buf[i] - '0');
+					exp10--;
+				}
+				anyDigits = true;
+				i++;
+			}
+		}
+		if (anyDigits && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+			i++;
+			boolean expNegative = false;
+			if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+				expNegative = (buf[i] == '-');
+				i++;
+			}
+			int exp = 0;
+			boolean expDigits = false;
+			while (i < end && buf[i] >= '0' && buf[i] <= '9' && exp < 10000) {
+				exp = exp * 10 + (buf[i] - '0');
+				expDigits = true;
+				i++;
+			}
+			if (!expDigits)
+				return parseDoubleSlow(buf, start, end);
+			exp10 += expNegative ? -exp : exp;
+		}
+		if (!anyDigits || i != end || sigDigits > 15)
+			return parseDoubleSlow(buf, start, end);
+
+		double value;
+		if (mantissa == 0)
+			value = 0.0;
+		else if (exp10 >= 0 && exp10 < POW10.length)
+			value = mantissa * POW10[exp10];
+		else if (exp10 < 0 && -exp10 < POW10.length)
+			value = mantissa / POW10[-exp10];
+		else
+			return parseDoubleSlow(buf, start, end);
+		return negative ? -value : value;
+	}
+
+	private static double parseDoubleSlow(byte[] buf, int start, int end) {
+		return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+	}
+
+	private void splitRow() {
+		numFields = 0;
+		int i = 0;
+		while (i < rowLen) {
+			while (i < rowLen && (row[i] == '\t' || row[i] == ' '))
+				i++;
+			if (i == rowLen)
+				break;
+			int start = i;
+			while (i < rowLen && row[i] != '\t' && row[i] != ' ')
+				i++;
+			if (numFields == fieldStart.length) {
+				fieldStart = Arrays.copyOf(fieldStart, numFields * 2);
+				fieldEnd = Arrays.copyOf(fieldEnd, numFields * 2);
+			}
+			fieldStart[numFields] = start;
+			fieldEnd[numFields] = i;
+			numFields++;
+		}
+	}
+
+	/**
+	 * Copy the next line (without its line terminator) into the row buffer.
+	 */
+	private boolean readLine() throws IOException {
+		rowLen = 0;
+		boolean gotData = false;
+		while (true) {
+			if (chunkPos == chunkLen) {
+				chunkLen = in.read(chunk, 0, chunk.length);
+				chunkPos = 0;
+				if (chunkLen <= 0) {
+					chunkLen = 0;
+					if (rowLen > 0 && row[rowLen - 1] == '\r')
+						rowLen--;
+					return gotData;
+				}
+			}
+			gotData = true;
+			int lineEnd = chunkPos;
+			while (lineEnd < chunkLen && chunk[lineEnd] != '\n')
+				lineEnd++;
+			appendToRow(chunkPos, lineEnd);
+			if (lineEnd < chunkLen) {
+				chunkPos = lineEnd + 1;
+				if (rowLen > 0 && row[rowLen - 1] == '\r')
+					rowLen--;
+				return true;
+			}
+			chunkPos = chunkLen;
+		}
+	}
+
+	private void appendToRow(int from, int to) {
+		int n = to - from;
+		if (rowLen + n > row.length)
+			row = Arrays.copyOf(row, Math.max(row.length * 2, rowLen + n));
+		System.arraycopy(chunk, from, row, rowLen, n);
+		rowLen += n;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}